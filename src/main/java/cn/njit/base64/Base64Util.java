@@ -1,8 +1,24 @@
 package cn.njit.base64;
 
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class Base64Util {
+    // 分块传输时每块的Base64字符数（8KB）
+    public static final int CHUNK_SIZE = 8192;
+
+    // 分块处理回调
+    public interface ChunkHandler {
+        void handle(String chunk) throws IOException;
+    }
+
     // 编码方法
     public static String encode(String text) {
         return Base64.getEncoder().encodeToString(text.getBytes());
@@ -14,6 +30,20 @@ public class Base64Util {
         return Base64.getEncoder().encodeToString(data);
     }
 
+    // 流式编码文件：按块读取并编码，每块交给handler处理，内存占用只与块大小有关
+    public static void encodeFile(String filePath, int chunkSize, ChunkHandler handler) throws IOException {
+        // 每3个字节编码为4个字符，按3的倍数读取保证每块都是可单独解码的Base64
+        byte[] buffer = new byte[Math.max(3, chunkSize / 4 * 3)];
+        Base64.Encoder encoder = Base64.getEncoder();
+        try (InputStream in = new FileInputStream(filePath)) {
+            int len;
+            while ((len = readFully(in, buffer)) > 0) {
+                byte[] block = len == buffer.length ? buffer : Arrays.copyOf(buffer, len);
+                handler.handle(new String(encoder.encode(block), StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
     // 解码方法
     public static String decode(String base64Text) {
         byte[] decoded = Base64.getDecoder().decode(base64Text);
@@ -26,6 +56,85 @@ public class Base64Util {
         java.nio.file.Files.write(java.nio.file.Paths.get(outputPath), decoded);
     }
 
+    // 创建流式解码输出流：写入Base64字符，解码后的字节写入out，关闭时同时关闭out。
+    // 接收端的数据块是逐条消息推送过来的，JDK只提供解码输入流Base64.Decoder.wrap(InputStream)，
+    // 套用它需要额外的管道线程；MIME解码器还会跳过非法字符，损坏的数据块不能被发现，所以按分组自行解码
+    public static OutputStream newDecodingStream(OutputStream out) {
+        return new DecodingOutputStream(out);
+    }
+
+    // 尽量读满缓冲区，返回实际读取的字节数（0表示已到文件末尾）
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int len = in.read(buffer, total, buffer.length - total);
+            if (len == -1) {
+                break;
+            }
+            total += len;
+        }
+        return total;
+    }
+
+    // 按4字符为一组增量解码，不足一组的字符留到下次写入
+    private static class DecodingOutputStream extends FilterOutputStream {
+        private final Base64.Decoder decoder = Base64.getDecoder();
+        private final byte[] pending = new byte[4];
+        private int pendingLength = 0;
+
+        DecodingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // 先补齐上次剩下的不完整分组
+            while (pendingLength > 0 && len > 0) {
+                pending[pendingLength++] = b[off++];
+                len--;
+                if (pendingLength == pending.length) {
+                    decodeTo(ByteBuffer.wrap(pending));
+                    pendingLength = 0;
+                }
+            }
+
+            int whole = len / 4 * 4;
+            if (whole > 0) {
+                decodeTo(ByteBuffer.wrap(b, off, whole));
+            }
+
+            for (int i = off + whole; i < off + len; i++) {
+                pending[pendingLength++] = b[i];
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (pendingLength > 0) {
+                    decodeTo(ByteBuffer.wrap(pending, 0, pendingLength));
+                    pendingLength = 0;
+                }
+            } finally {
+                super.close();
+            }
+        }
+
+        private void decodeTo(ByteBuffer encoded) throws IOException {
+            try {
+                ByteBuffer decoded = decoder.decode(encoded);
+                out.write(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.remaining());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Base64数据格式错误: " + e.getMessage(), e);
+            }
+        }
+    }
+
     // 测试方法
     public static void main(String[] args) {
         String original = "Hello, BASE64!";
@@ -0,0 +1,71 @@
+package cn.njit.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// 批量上传：文件分给连接池中的各个连接同时上传，每个连接上传完一个文件后接着上传下一个
+public class BatchUploader {
+    // 上传中断时换一个连接重试的次数，服务端支持续传时从已保存的位置继续
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final ConnectionPool pool;
+
+    public BatchUploader(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // 上传所有文件，返回的结果与文件顺序一致；单个文件失败不影响其他文件
+    public List<UploadResult> uploadAll(Collection<File> files) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(pool.getMaxSize(), files.size())));
+        try {
+            List<Future<UploadResult>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(workers.submit(() -> upload(file)));
+            }
+            List<UploadResult> results = new ArrayList<>(futures.size());
+            for (Future<UploadResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("批量上传被中断", e);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    public UploadResult upload(File file) {
+        if (!file.isFile()) {
+            return UploadResult.failed(file, "文件不存在");
+        }
+        String error = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            ClientSession session;
+            try {
+                session = pool.borrow();
+            } catch (IOException e) {
+                error = e.getMessage();
+                continue;
+            }
+            try {
+                UploadResult result = UploadResult.of(file, session.upload(file));
+                pool.release(session);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                pool.invalidate(session);
+                error = e.getMessage();
+            }
+        }
+        return UploadResult.failed(file, error);
+    }
+}
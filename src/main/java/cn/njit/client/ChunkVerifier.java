@@ -0,0 +1,91 @@
+package cn.njit.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 按块校验下载的文件：数据原样写入下层流，同时按块计算CRC32C并与服务端CHUNK_SUMS中的值比较，
+ * 记录损坏的块序号，下载结束后只需补取这些块。
+ */
+public class ChunkVerifier extends FilterOutputStream {
+    private final int blockSize;
+    private final int[] expected;
+    private final CRC32C crc = new CRC32C();
+    private final List<Long> badChunks = new ArrayList<>();
+    private long blockIndex = 0;
+    private int blockFill = 0;
+
+    // sums格式为 块大小:十六进制值,十六进制值,...，格式错误时抛出IllegalArgumentException
+    public ChunkVerifier(OutputStream out, String sums) {
+        super(out);
+        String[] parts = sums.split(":", 2);
+        this.blockSize = Integer.parseInt(parts[0]);
+        if (blockSize <= 0) {
+            // 块大小为0时write无法推进
+            throw new IllegalArgumentException("无效的块大小: " + blockSize);
+        }
+        String[] values = parts[1].isEmpty() ? new String[0] : parts[1].split(",");
+        this.expected = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            expected[i] = Integer.parseUnsignedInt(values[i], 16);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockFill);
+            crc.update(b, off, n);
+            blockFill += n;
+            off += n;
+            len -= n;
+            if (blockFill == blockSize) {
+                endBlock();
+            }
+        }
+    }
+
+    // 下载结束：检查最后一个不满的块以及缺少的块，返回需要补取的块序号
+    public List<Long> finish() {
+        if (blockFill > 0) {
+            endBlock();
+        }
+        for (long i = blockIndex; i < expected.length; i++) {
+            badChunks.add(i);
+        }
+        return badChunks;
+    }
+
+    // 补取的块是否与服务端公布的校验值一致
+    public boolean matches(long index, byte[] data, int off, int len) {
+        if (index < 0 || index >= expected.length) {
+            return false;
+        }
+        CRC32C check = new CRC32C();
+        check.update(data, off, len);
+        return (int) check.getValue() == expected[(int) index];
+    }
+
+    private void endBlock() {
+        if (blockIndex >= expected.length || (int) crc.getValue() != expected[(int) blockIndex]) {
+            badChunks.add(blockIndex);
+        }
+        blockIndex++;
+        blockFill = 0;
+        crc.reset();
+    }
+}
@@ -1,29 +1,73 @@
 package cn.njit.client;
 
-import cn.njit.base64.Base64Util;
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.protocol.StreamMux;
+import cn.njit.util.CRC32Util;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.zip.Deflater;
 
 public class Client {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8888;
+    // 上传时未确认数据块的最大数量，可通过 -Dclient.ackWindow 调整
+    private static final int ACK_WINDOW = Integer.getInteger("client.ackWindow", 32);
+    // 上传中断后的最大尝试次数
+    private static final int MAX_UPLOAD_ATTEMPTS = 3;
+    // 大文件并行上传和下载使用的连接数，可通过 -Dclient.streams 调整
+    private static final int UPLOAD_STREAMS = Integer.getInteger("client.streams", 4);
+    // 上传校验算法（CRC32、CRC32C、XXHASH64），可通过 -Dclient.checksum 调整
+    private static final CRC32Util.Algorithm CHECKSUM_ALGORITHM =
+            CRC32Util.parseAlgorithm(System.getProperty("client.checksum", "CRC32C"));
+    // 批量上传使用的连接数，可通过 -Dclient.poolSize 调整
+    private static final int POOL_SIZE = Integer.getInteger("client.poolSize", 4);
+    // 批量上传的文件数不超过该值时逐个输出结果，否则只输出失败的文件和汇总
+    private static final int REPORT_LIMIT = 20;
+    // 上传压缩级别（1-9，-1为Deflater默认级别，0不压缩），可通过 -Dclient.compressLevel 调整
+    private static final int COMPRESS_LEVEL = Integer.getInteger("client.compressLevel", Deflater.DEFAULT_COMPRESSION);
+    // list和search命令每次显示的记录数
+    private static final int LIST_PAGE_SIZE = 50;
     private Socket socket;
     private final Object outputLock = new Object(); // 用于同步输出流操作
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private MessageChannel channel;
+    private FileSender fileSender;
+    // 与服务端协商成功的校验算法，服务端不支持时为null
+    private CRC32Util.Algorithm checksumAlgorithm;
+    // 服务端支持多路复用时，每个上传和消息使用单独的流，互不等待；为null时按原方式独占连接
+    private volatile StreamMux mux;
 
     public boolean connect() {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // 连接和协商由ClientSession完成，与批量上传的连接池使用同样的流程
+            ClientSession session = new ClientSession(SERVER_HOST, SERVER_PORT, ACK_WINDOW, CHECKSUM_ALGORITHM);
+            socket = session.getSocket();
+            channel = session.getChannel();
             System.out.println("客户端连接到服务端：" + SERVER_HOST + ":" + SERVER_PORT);
+            System.out.println(session.getWelcome());
 
-            // 读取服务端欢迎消息
-            String welcome = Base64Util.decode(reader.readLine());
-            System.out.println(welcome);
+            if (channel.isBinary()) {
+                System.out.println("已切换为二进制传输模式");
+            }
+            if (session.isWindowNegotiated()) {
+                System.out.println("上传确认窗口: " + ACK_WINDOW + " 块");
+            }
+            checksumAlgorithm = session.getChecksumAlgorithm();
+            fileSender = session.getFileSender();
+            fileSender.setCompressionLevel(COMPRESS_LEVEL);
+
+            if (channel.isBinary() && channel.hasFeature(MessageChannel.FEATURE_MUX)) {
+                // 连接改由接收线程统一读取，应答按流ID转交给各个上传和消息
+                mux = new StreamMux(channel);
+                new Thread(new MessageReceiver(channel, mux)).start();
+                System.out.println("已启用多路复用，上传和消息可以同时进行");
+            } else {
+                mux = null;
+            }
 
             return true;
         } catch (IOException e) {
@@ -58,15 +102,33 @@ public class Client {
         return exists;
     }
 
-    public synchronized void sendData(String data) throws IOException {
+    public void sendData(String data) throws IOException {
         if (!isConnected()) {
             throw new IOException("连接未建立或已关闭");
         }
-        writer.println(Base64Util.encode(data)); // 按行发送
+        StreamMux current = mux;
+        if (current != null) {
+            // 在单独的流上发送，不必等待正在进行的上传
+            try (StreamMux.Stream stream = current.open()) {
+                stream.getChannel().sendText(data);
+                System.out.println("服务器响应: " + stream.receive().getText());
+            }
+            return;
+        }
+        synchronized (this) {
+            sendDataExclusive(data);
+        }
+    }
+
+    private void sendDataExclusive(String data) throws IOException {
+        channel.sendText(data);
 
         // 读取服务端响应
-        String response = Base64Util.decode(reader.readLine());
-        System.out.println("服务器响应: " + response);
+        Message response = channel.receive();
+        if (response == null) {
+            throw new IOException("服务端已关闭连接");
+        }
+        System.out.println("服务器响应: " + response.getText());
     }
 
     // 发送普通消息（自动添加MSG协议头）
@@ -84,20 +146,59 @@ public class Client {
                 }
 
                 File file = new File(filePath);
-                String fileName = file.getName();
-                String encodedFile = Base64Util.encodeFile(filePath);
-
-                // 分块发送
-                int chunkSize = 8192; // 8KB每块
-                writer.println(Base64Util.encode("FILE_START:" + fileName));
-
-                for (int i = 0; i < encodedFile.length(); i += chunkSize) {
-                    int end = Math.min(encodedFile.length(), i + chunkSize);
-                    writer.println(Base64Util.encode(encodedFile.substring(i, end)));
+                if (UPLOAD_STREAMS > 1 && file.length() >= ParallelUploader.MIN_PARALLEL_SIZE
+                        && channel.hasFeature(MessageChannel.FEATURE_PARALLEL)) {
+                    // 大文件使用多个连接并行上传
+                    ParallelUploader uploader = new ParallelUploader(SERVER_HOST, SERVER_PORT, UPLOAD_STREAMS,
+                            ACK_WINDOW, checksumAlgorithm);
+                    uploader.setCompressionLevel(COMPRESS_LEVEL);
+                    if (uploader.upload(file)) {
+                        System.out.println("文件已并行发送: " + file.getName() + " (" + UPLOAD_STREAMS + " 个连接)");
+                    } else {
+                        System.out.println("服务端已有相同内容，跳过上传: " + file.getName());
+                    }
+                    return;
                 }
 
-                writer.println(Base64Util.encode("FILE_END"));
-                System.out.println("文件已发送: " + fileName);
+                FileSender sender = fileSender;
+                if (mux != null) {
+                    sender = sendMultiplexed(file);
+                } else {
+                    // 与sendData共用同一连接的应答，上传期间独占连接
+                    synchronized (Client.this) {
+                        for (int attempt = 1; ; attempt++) {
+                            try {
+                                fileSender.sendFile(file);
+                                break;
+                            } catch (IOException e) {
+                                // 服务端支持续传时重新连接，从已保存的位置继续上传
+                                if (attempt >= MAX_UPLOAD_ATTEMPTS || !channel.hasFeature(MessageChannel.FEATURE_RESUME)) {
+                                    throw e;
+                                }
+                                System.err.println("上传中断（" + e.getMessage() + "），正在重新连接续传...");
+                                disconnect();
+                                if (!connect()) {
+                                    throw e;
+                                }
+                            }
+                        }
+                        // 重新连接后使用新连接的FileSender
+                        sender = fileSender;
+                    }
+                }
+                if (sender.isLastDeduplicated()) {
+                    System.out.println("服务端已有相同内容，跳过上传: " + file.getName());
+                    return;
+                }
+                if (sender.getLastDeltaBytes() >= 0) {
+                    System.out.println("文件已增量发送: " + file.getName() + " (新数据 "
+                            + sender.getLastDeltaBytes() + " / " + file.length() + " 字节)");
+                    return;
+                }
+                String checksum = sender.getLastChecksum();
+                long compressed = sender.getLastCompressedBytes();
+                System.out.println("文件已发送: " + file.getName() + (checksum == null ? "" : " (校验和: " + checksum + ")")
+                        + (compressed < 0 ? "" : " (压缩后 " + compressed + " / " + file.length() + " 字节)"));
 
             } catch (Exception e) {
                 System.err.println("文件传输失败: " + e.getMessage());
@@ -106,6 +207,163 @@ public class Client {
         }).start();
     }
 
+    // 在单独的多路复用流上上传，每个上传有自己的FileSender和应答队列，多个文件可以同时上传
+    private FileSender sendMultiplexed(File file) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            StreamMux current = mux;
+            if (current == null) {
+                throw new IOException("连接未建立或已关闭");
+            }
+            try (StreamMux.Stream stream = current.open()) {
+                FileSender sender = new FileSender(stream.getChannel(), stream::receive, ACK_WINDOW, checksumAlgorithm);
+                sender.setCompressionLevel(COMPRESS_LEVEL);
+                sender.sendFile(file);
+                return sender;
+            } catch (IOException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS || !channel.hasFeature(MessageChannel.FEATURE_RESUME)) {
+                    throw e;
+                }
+                System.err.println("上传中断（" + e.getMessage() + "），正在续传...");
+                // 连接仍然正常时在新的流上续传，不影响同一连接上的其他上传
+                if (current.isClosed() && !reconnect(current)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // 查询服务端的文件记录并逐条显示，criteria为空时列出全部，返回下一页的起始ID（0表示没有更多）
+    public long listFiles(String criteria, long afterId) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("连接未建立或已关闭");
+        }
+        if (!channel.hasFeature(MessageChannel.FEATURE_LIST)) {
+            throw new IOException("服务端不支持查询文件记录");
+        }
+        String command = ClientSession.listCommand(criteria, afterId, LIST_PAGE_SIZE);
+        long next;
+        StreamMux current = mux;
+        if (current != null) {
+            try (StreamMux.Stream stream = current.open()) {
+                stream.getChannel().sendText(command);
+                next = ClientSession.receiveRecords(stream::receive, Client::printRecord);
+            }
+        } else {
+            synchronized (this) {
+                channel.sendText(command);
+                next = ClientSession.receiveRecords(channel::receive, Client::printRecord);
+            }
+        }
+        if (next > 0) {
+            System.out.println("还有更多记录，继续查看请从ID " + next + " 之后开始");
+        }
+        return next;
+    }
+
+    // 显示服务端按条件统计的上传文件数、总大小和传输速度
+    public void showStats(String criteria) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("连接未建立或已关闭");
+        }
+        if (!channel.hasFeature(MessageChannel.FEATURE_STATS)) {
+            throw new IOException("服务端不支持上传统计");
+        }
+        String command = MessageChannel.STATS_CMD + ClientSession.encodeCriteria(criteria);
+        String reply;
+        StreamMux current = mux;
+        if (current != null) {
+            try (StreamMux.Stream stream = current.open()) {
+                stream.getChannel().sendText(command);
+                reply = stream.receive().getText();
+            }
+        } else {
+            synchronized (this) {
+                channel.sendText(command);
+                Message response = channel.receive();
+                if (response == null) {
+                    throw new IOException("服务端已关闭连接");
+                }
+                reply = response.getText();
+            }
+        }
+        if (reply == null || !reply.startsWith(MessageChannel.STATS_CMD)) {
+            throw new IOException("统计失败: " + reply);
+        }
+        // 文件数:总字节数:有耗时记录的上传数:总耗时毫秒:平均速度:峰值速度
+        String[] fields = reply.substring(MessageChannel.STATS_CMD.length()).split(":");
+        System.out.println("文件数: " + fields[0] + ", 总大小: " + fields[1] + " 字节");
+        System.out.println("传输: " + fields[2] + " 次, 总耗时: " + fields[3] + " 毫秒, 平均速度: " + fields[4]
+                + " 字节/秒, 峰值速度: " + fields[5] + " 字节/秒");
+    }
+
+    // 下载服务端的文件，target为空时保存到当前目录下同名的文件；之前中断的下载从已保存的部分续传
+    public void downloadFile(String name, String target) {
+        new Thread(() -> {
+            try {
+                if (!isConnected() || !channel.hasFeature(MessageChannel.FEATURE_DOWNLOAD)) {
+                    System.err.println("下载失败: 服务端不支持下载文件");
+                    return;
+                }
+                File file = new File(target != null ? target : new File(name).getName());
+                long start = System.currentTimeMillis();
+                long size = new FileDownloader(SERVER_HOST, SERVER_PORT, UPLOAD_STREAMS, ACK_WINDOW).download(name, file);
+                System.out.println("文件已下载: " + file.getPath() + " (" + size + " 字节, "
+                        + (System.currentTimeMillis() - start) + " 毫秒)");
+            } catch (IOException e) {
+                System.err.println("下载失败: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    private static void printRecord(String record) {
+        // ID\t上传时间\t内容哈希\t文件名
+        String[] fields = record.split("\t", 4);
+        if (fields.length < 4) {
+            System.out.println(record);
+            return;
+        }
+        String hash = fields[2].length() > 12 ? fields[2].substring(0, 12) : fields[2];
+        System.out.println(fields[0] + "  " + fields[1] + "  " + hash + "  " + fields[3]);
+    }
+
+    // 同一连接上的多个上传同时中断时只重新连接一次
+    private synchronized boolean reconnect(StreamMux broken) {
+        if (mux != broken) {
+            return mux != null;
+        }
+        disconnect();
+        return connect();
+    }
+
+    // 多路复用时唯一读取连接的线程：各个流的应答转交给等待的上传和消息，其余消息直接显示
+    private class MessageReceiver implements Runnable {
+        private final MessageChannel receiverChannel;
+        private final StreamMux receiverMux;
+
+        MessageReceiver(MessageChannel receiverChannel, StreamMux receiverMux) {
+            this.receiverChannel = receiverChannel;
+            this.receiverMux = receiverMux;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Message received;
+                while ((received = receiverChannel.receive()) != null) {
+                    if (!receiverMux.dispatch(received) && received.isText()) {
+                        System.out.println("服务器消息: " + received.getText());
+                    }
+                }
+            } catch (IOException e) {
+                if (!receiverChannel.getSocket().isClosed()) {
+                    System.err.println("连接异常: " + e.getMessage());
+                }
+            } finally {
+                receiverMux.close();
+            }
+        }
+    }
+
     // 用户交互线程
     private static class UserInteractionThread extends Thread {
         private Client client;
@@ -118,13 +376,75 @@ public class Client {
 
         @Override
         public void run() {
-            System.out.println("输入消息（exit退出，upload <文件路径> 上传文件）:");
+            System.out.println("输入消息（exit退出，upload <文件路径> 上传文件，uploaddir <目录路径> [<glob>] 上传目录，"
+                    + "list [<起始ID>] 列出文件记录，search <name=前缀&from=时间&to=时间&hash=哈希> [<起始ID>] 查询文件记录，"
+                    + "stats [<条件>] 上传统计，download <文件名> [<保存路径>] 下载文件）:");
             System.out.println("当前工作目录: " + System.getProperty("user.dir")); // 打印工作目录
             while (true) {
                 String input = scanner.nextLine();
                 if ("exit".equalsIgnoreCase(input)) {
                     client.disconnect();
                     break;
+                } else if (input.startsWith("uploaddir ")) {
+                    // uploaddir <目录> 或 uploaddir <目录> <glob>，如 uploaddir <logs> <**/*.log>
+                    List<String> args = new ArrayList<>();
+                    int start;
+                    int end = -1;
+                    while ((start = input.indexOf('<', end + 1)) != -1 && (end = input.indexOf('>', start)) != -1) {
+                        args.add(input.substring(start + 1, end).trim());
+                    }
+                    if (args.isEmpty() || !new File(args.get(0)).isDirectory()) {
+                        System.err.println("错误：请使用格式 uploaddir <目录路径> [<glob>]");
+                        continue;
+                    }
+                    String glob = args.size() > 1 ? args.get(1) : null;
+                    new Thread(() -> uploadBatch(new String[]{args.get(0)}, glob)).start();
+                } else if ("list".equals(input) || input.startsWith("list ") || input.startsWith("search ")) {
+                    // list [<起始ID>] 或 search <条件> [<起始ID>]
+                    List<String> args = new ArrayList<>();
+                    int start;
+                    int end = -1;
+                    while ((start = input.indexOf('<', end + 1)) != -1 && (end = input.indexOf('>', start)) != -1) {
+                        args.add(input.substring(start + 1, end).trim());
+                    }
+                    boolean search = input.startsWith("search ");
+                    if (search && args.isEmpty()) {
+                        System.err.println("错误：请使用格式 search <name=前缀&from=时间&to=时间&hash=哈希> [<起始ID>]");
+                        continue;
+                    }
+                    try {
+                        String criteria = search ? args.get(0) : null;
+                        int idArg = search ? 1 : 0;
+                        long afterId = args.size() > idArg ? Long.parseLong(args.get(idArg)) : 0;
+                        client.listFiles(criteria, afterId);
+                    } catch (NumberFormatException e) {
+                        System.err.println("错误：起始ID必须是数字");
+                    } catch (IOException e) {
+                        System.err.println("查询失败: " + e.getMessage());
+                    }
+                } else if ("stats".equals(input) || input.startsWith("stats ")) {
+                    // stats 或 stats <条件>，条件格式与search相同
+                    int start = input.indexOf('<');
+                    int end = input.indexOf('>');
+                    String criteria = start != -1 && end > start ? input.substring(start + 1, end).trim() : null;
+                    try {
+                        client.showStats(criteria);
+                    } catch (IOException e) {
+                        System.err.println("统计失败: " + e.getMessage());
+                    }
+                } else if (input.startsWith("download ")) {
+                    // download <文件名> 或 download <文件名> <保存路径>
+                    List<String> args = new ArrayList<>();
+                    int start;
+                    int end = -1;
+                    while ((start = input.indexOf('<', end + 1)) != -1 && (end = input.indexOf('>', start)) != -1) {
+                        args.add(input.substring(start + 1, end).trim());
+                    }
+                    if (args.isEmpty() || args.get(0).isEmpty()) {
+                        System.err.println("错误：请使用格式 download <文件名> [<保存路径>]");
+                        continue;
+                    }
+                    client.downloadFile(args.get(0), args.size() > 1 ? args.get(1) : null);
                 } else if (input.startsWith("upload ")) {
                     // 修复点：精确提取 < > 内的路径
                     int start = input.indexOf('<');
@@ -154,7 +474,56 @@ public class Client {
         }
     }
 
+    // 批量上传命令行参数中的所有文件和目录，分给连接池中的多个长连接同时上传，全部成功时返回true；
+    // 目录递归上传其中匹配glob的文件（glob为空时全部上传），保留相对路径
+    public static boolean uploadBatch(String[] paths, String glob) {
+        List<File> files = new ArrayList<>();
+        List<File> directories = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            (file.isDirectory() ? directories : files).add(file);
+        }
+        try (ConnectionPool pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, POOL_SIZE, ACK_WINDOW,
+                CHECKSUM_ALGORITHM)) {
+            pool.setCompressionLevel(COMPRESS_LEVEL);
+            List<UploadResult> results = new ArrayList<>();
+            if (!files.isEmpty()) {
+                results.addAll(new BatchUploader(pool).uploadAll(files));
+            }
+            for (File directory : directories) {
+                results.addAll(new DirectoryUploader(pool).upload(directory.toPath(), glob));
+            }
+            return report(results);
+        } catch (IOException e) {
+            System.err.println("批量上传失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // 文件较多时只列出失败的文件，最后输出汇总
+    private static boolean report(List<UploadResult> results) {
+        int failed = 0;
+        int deduplicated = 0;
+        for (UploadResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+            } else if (result.isDeduplicated()) {
+                deduplicated++;
+            }
+            if (results.size() <= REPORT_LIMIT || !result.isSuccess()) {
+                System.out.println(result);
+            }
+        }
+        System.out.println("共 " + results.size() + " 个文件：成功 " + (results.size() - failed)
+                + "（其中 " + deduplicated + " 个服务端已有），失败 " + failed);
+        return failed == 0;
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // 带文件或目录参数时批量上传后退出，供脚本调用
+            System.exit(uploadBatch(args, System.getProperty("client.glob")) ? 0 : 1);
+        }
         new Client().start();
     }
 }
@@ -9,6 +9,7 @@ import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -176,9 +177,9 @@ public class ClientGUI extends JFrame {
 
     // 添加接收升级文件方法
     private void receiveUpgradeFile() {
+        OutputStream fileOut = null;
         try {
             String fileName = null;
-            StringBuilder fileContent = new StringBuilder();
 
             while (true) {
                 String encodedData = reader.readLine();
@@ -188,11 +189,13 @@ public class ClientGUI extends JFrame {
 
                 if (decodedData.startsWith("FILE_START:")) {
                     fileName = decodedData.substring(11);
-                    fileContent.setLength(0);
+                    // 边接收边解码写入临时文件
+                    fileOut = Base64Util.newDecodingStream(
+                            new BufferedOutputStream(new FileOutputStream(TEMP_CLIENT_JAR)));
                 } else if (decodedData.equals("FILE_END")) {
                     if (fileName != null) {
-                        // 保存文件为临时文件
-                        Base64Util.decodeFile(fileContent.toString(), TEMP_CLIENT_JAR);
+                        fileOut.close();
+                        fileOut = null;
 
                         // 创建批处理文件用于替换旧版本
                         createUpdateScript();
@@ -201,11 +204,18 @@ public class ClientGUI extends JFrame {
                         break;
                     }
                 } else if (fileName != null) {
-                    fileContent.append(decodedData);
+                    fileOut.write(decodedData.getBytes(StandardCharsets.US_ASCII));
                 }
             }
         } catch (Exception e) {
             messageArea.append("下载新版本失败: " + e.getMessage() + "\n");
+        } finally {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
     }
 
@@ -274,16 +284,10 @@ public class ClientGUI extends JFrame {
         try {
             File file = new File(filePath);
             String fileName = file.getName();
-            String encodedFile = Base64Util.encodeFile(filePath);
-
-            // 分块发送
-            int chunkSize = 8192; // 8KB每块
+            // 分块流式编码发送，不再一次性读入整个文件
             writer.println(Base64Util.encode("FILE_START:" + fileName));
-
-            for (int i = 0; i < encodedFile.length(); i += chunkSize) {
-                int end = Math.min(encodedFile.length(), i + chunkSize);
-                writer.println(Base64Util.encode(encodedFile.substring(i, end)));
-            }
+            Base64Util.encodeFile(filePath, Base64Util.CHUNK_SIZE,
+                    chunk -> writer.println(Base64Util.encode(chunk)));
 
             writer.println(Base64Util.encode("FILE_END"));
             messageArea.append("文件已发送: " + fileName + "\n");
@@ -1,6 +1,11 @@
 package cn.njit.client;
 
 import cn.njit.base64.Base64Util;
+import cn.njit.delta.BlockSignature;
+import cn.njit.delta.DeltaBase;
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.protocol.StreamMux;
 import cn.njit.util.CRC32Util;
 import cn.njit.steganography.LSBSteganography;
 
@@ -9,11 +14,17 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 
@@ -23,9 +34,25 @@ public class ClientGUI_v2 extends JFrame {
     private static final String CLIENT_VERSION = "1.0.1";
     private static final String CLIENT_JAR = "ClientGUI.jar";
     private static final String TEMP_CLIENT_JAR = "ClientGUI.temp.jar";
+    // 上传时未确认数据块的最大数量，可通过 -Dclient.ackWindow 调整
+    private static final int ACK_WINDOW = Integer.getInteger("client.ackWindow", 32);
+    // 大文件并行上传使用的连接数，可通过 -Dclient.streams 调整
+    private static final int UPLOAD_STREAMS = Integer.getInteger("client.streams", 4);
+    // 上传校验算法（CRC32、CRC32C、XXHASH64），可通过 -Dclient.checksum 调整
+    private static final CRC32Util.Algorithm CHECKSUM_ALGORITHM =
+            CRC32Util.parseAlgorithm(System.getProperty("client.checksum", "CRC32C"));
+    // 上传压缩级别（1-9，-1为Deflater默认级别，0不压缩），可通过 -Dclient.compressLevel 调整
+    private static final int COMPRESS_LEVEL = Integer.getInteger("client.compressLevel", Deflater.DEFAULT_COMPRESSION);
     private Socket socket;
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private transient MessageChannel channel;
+    private transient FileSender fileSender;
+    // 与服务端协商成功的校验算法，服务端不支持时为null
+    private CRC32Util.Algorithm checksumAlgorithm;
+    // 上传过程中由接收线程转交给FileSender的应答
+    private final transient BlockingQueue<Message> transferReplies = new LinkedBlockingQueue<>();
+    private volatile boolean transferring = false;
+    // 服务端支持多路复用时，每个上传使用单独的流，聊天消息和多个上传可以同时进行
+    private transient volatile StreamMux mux;
 
     private JTextArea messageArea;
     private JTextField inputField;
@@ -120,8 +147,8 @@ public class ClientGUI_v2 extends JFrame {
     }
     private void checkVersion() throws IOException {
         System.out.println("开始执行 checkVersion 方法");
-        writer.println(Base64Util.encode("VERSION_CHECK"));
-        String response = Base64Util.decode(reader.readLine());
+        channel.sendText("VERSION_CHECK");
+        String response = channel.receive().getText();
         System.out.println("接收到的版本信息: " + response); // 添加日志输出
 
         if (response.startsWith("VERSION_INFO:")) {
@@ -141,11 +168,16 @@ public class ClientGUI_v2 extends JFrame {
                     messageArea.append("发现新版本: " + serverVersion + "\n");
                     messageArea.append("正在下载新版本...\n");
 
-                    // 请求升级文件
-                    writer.println(Base64Util.encode("UPGRADE_REQUEST:" + CLIENT_JAR));
+                    // 请求升级文件，本地有旧版本时只下载变化的部分
+                    BlockSignature localVersion = localVersionSignature();
+                    if (localVersion != null) {
+                        channel.sendText(MessageChannel.UPGRADE_DELTA_CMD + localVersion.format() + ":" + CLIENT_JAR);
+                    } else {
+                        channel.sendText("UPGRADE_REQUEST:" + CLIENT_JAR);
+                    }
 
                     // 接收文件
-                    receiveUpgradeFile();
+                    receiveUpgradeFile(localVersion == null ? 0 : localVersion.getBlockSize());
 
                     messageArea.append("新版本下载完成，即将重启应用进行升级\n");
 
@@ -158,27 +190,28 @@ public class ClientGUI_v2 extends JFrame {
     }
     public boolean connect() {
         try {
-            socket = new Socket();
             System.out.println("尝试连接到服务端：" + SERVER_HOST + ":" + SERVER_PORT);
-            // 设置连接超时5秒
-            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), 5000);
+            // 连接（超时5秒）、读取欢迎消息和协商由ClientSession完成
+            ClientSession session = new ClientSession(SERVER_HOST, SERVER_PORT, ACK_WINDOW, CHECKSUM_ALGORITHM);
+            socket = session.getSocket();
+            channel = session.getChannel();
             System.out.println("客户端成功连接到服务端：" + SERVER_HOST + ":" + SERVER_PORT);
             // 设置读超时60秒
             socket.setSoTimeout(60000);
-
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-
-            // 首先读取服务端欢迎消息
-            System.out.println("开始读取服务端欢迎消息...");
-            String welcome = Base64Util.decode(reader.readLine());
-            messageArea.append(welcome + "\n");
+            messageArea.append(session.getWelcome() + "\n");
+            if (channel.isBinary()) {
+                System.out.println("已切换为二进制传输模式");
+            }
+            checksumAlgorithm = session.getChecksumAlgorithm();
+            fileSender = new FileSender(channel, this::nextTransferReply, ACK_WINDOW, checksumAlgorithm);
+            fileSender.setCompressionLevel(COMPRESS_LEVEL);
 
             // 然后检查版本
             System.out.println("开始执行版本检查...");
             checkVersion();
 
+            mux = channel.isBinary() && channel.hasFeature(MessageChannel.FEATURE_MUX) ? new StreamMux(channel) : null;
+
             // 启动接收消息线程
             new Thread(new MessageReceiver()).start();
 
@@ -212,31 +245,87 @@ public class ClientGUI_v2 extends JFrame {
             messageArea.append("准备升级脚本失败: " + e.getMessage() + "\n");
         }
     }
-    // 添加接收升级文件方法
-    private void receiveUpgradeFile() {
+    // 本地旧版本的块签名，服务端不支持增量传输或本地没有旧版本时返回null
+    private BlockSignature localVersionSignature() {
+        File localJar = new File(CLIENT_JAR);
+        if (!localJar.isFile() || !channel.hasFeature(MessageChannel.FEATURE_DELTA)) {
+            return null;
+        }
+        try {
+            return BlockSignature.of(localJar.toPath());
+        } catch (IOException e) {
+            System.err.println("计算本地版本块签名失败: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // 添加接收升级文件方法，deltaBlockSize为请求增量下载时发送的块签名的块大小
+    private void receiveUpgradeFile(int deltaBlockSize) {
+        CheckedOutputStream rawOut = null;
+        // 二进制数据写入的流，服务端发送了块校验值时经过ChunkVerifier
+        OutputStream dataOut = null;
+        ChunkVerifier verifier = null;
+        OutputStream fileOut = null;
+        // 增量下载时复制块的来源，即本地的旧版本
+        DeltaBase deltaBase = null;
         try {
             String fileName = null;
-            StringBuilder fileContent = new StringBuilder();
             long expectedChecksum = 0;
+            String chunkSums = null;
 
             while (true) {
-                String encodedData = reader.readLine();
-                if (encodedData == null) break;
+                Message received = channel.receive();
+                if (received == null) break;
 
-                String decodedData = Base64Util.decode(encodedData);
+                if (received.isData()) {
+                    // 二进制模式下的原始文件数据
+                    if (fileOut != null) {
+                        dataOut.write(received.getPayload());
+                    }
+                    continue;
+                } else if (received.isStream()) {
+                    // 二进制模式下整个文件以文件流发送，必须读完帧后的全部字节
+                    channel.readStream(fileOut != null ? dataOut : OutputStream.nullOutputStream(),
+                            received.getStreamLength());
+                    continue;
+                }
+
+                String decodedData = received.getText();
 
                 if (decodedData.startsWith("CHECKSUM:")) {
                     expectedChecksum = Long.parseLong(decodedData.substring(9));
-                } else if (decodedData.startsWith("FILE_START:")) {
-                    fileName = decodedData.substring(11);
-                    fileContent.setLength(0);
+                } else if (decodedData.startsWith(MessageChannel.CHUNK_SUMS_PREFIX)) {
+                    chunkSums = decodedData.substring(MessageChannel.CHUNK_SUMS_PREFIX.length());
+                } else if (decodedData.startsWith("FILE_START:") || decodedData.startsWith(MessageChannel.DELTA_START_CMD)) {
+                    if (decodedData.startsWith(MessageChannel.DELTA_START_CMD)) {
+                        fileName = decodedData.substring(MessageChannel.DELTA_START_CMD.length());
+                        deltaBase = new DeltaBase(Paths.get(CLIENT_JAR), deltaBlockSize);
+                    } else {
+                        fileName = decodedData.substring(11);
+                    }
+                    // 边接收边解码写入临时文件
+                    // 写入的同时计算CRC32，结束时不需要再读一遍文件
+                    rawOut = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(TEMP_CLIENT_JAR)),
+                            new CRC32());
+                    verifier = chunkSums != null ? new ChunkVerifier(rawOut, chunkSums) : null;
+                    dataOut = verifier != null ? verifier : rawOut;
+                    fileOut = Base64Util.newDecodingStream(dataOut);
+                } else if (decodedData.startsWith(MessageChannel.DELTA_COPY_CMD) && deltaBase != null) {
+                    // 与本地旧版本相同的块，直接从旧版本复制
+                    String[] parts = decodedData.substring(MessageChannel.DELTA_COPY_CMD.length()).split(":");
+                    deltaBase.copyTo(Long.parseLong(parts[0]), Long.parseLong(parts[1]), dataOut::write);
                 } else if (decodedData.equals("FILE_END")) {
                     if (fileName != null) {
-                        // 保存文件为临时文件
-                        Base64Util.decodeFile(fileContent.toString(), TEMP_CLIENT_JAR);
+                        fileOut.close();
+                        fileOut = null;
 
                         // Verify the saved file
-                        long fileChecksum = CRC32Util.calculateFile(TEMP_CLIENT_JAR);
+                        long fileChecksum = rawOut.getChecksum().getValue();
+                        if (verifier != null && !verifier.finish().isEmpty()) {
+                            // 只补取损坏的块，补取后文件内容已改变，重新计算整体校验和
+                            repairUpgradeChunks(fileName, verifier);
+                            fileChecksum = CRC32Util.calculateFile(TEMP_CLIENT_JAR);
+                        }
                         if (fileChecksum != expectedChecksum) {
                             messageArea.append("保存文件校验失败: 校验和不匹配 (预期: " + expectedChecksum +
                                     ", 实际: " + fileChecksum + ")\n");
@@ -250,13 +339,56 @@ public class ClientGUI_v2 extends JFrame {
                         break;
                     }
                 } else if (fileName != null) {
-                    fileContent.append(decodedData);
+                    fileOut.write(decodedData.getBytes(StandardCharsets.US_ASCII));
                 }
             }
         } catch (Exception e) {
             messageArea.append("下载新版本失败: " + e.getMessage() + "\n");
+        } finally {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (deltaBase != null) {
+                try {
+                    deltaBase.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
     }
+
+    // 逐个请求校验失败的块并写回临时文件对应的位置
+    private void repairUpgradeChunks(String fileName, ChunkVerifier verifier) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(TEMP_CLIENT_JAR, "rw")) {
+            for (long index : verifier.finish()) {
+                messageArea.append("数据块校验失败，重新下载第 " + index + " 块\n");
+                boolean repaired = false;
+                for (int attempt = 0; attempt < 3 && !repaired; attempt++) {
+                    channel.sendText(MessageChannel.UPGRADE_CHUNK_CMD + index + ":" + fileName);
+                    Message reply = channel.receive();
+                    if (reply == null) {
+                        throw new IOException("服务端已关闭连接");
+                    }
+                    if (reply.isText()) {
+                        throw new IOException("补取数据块失败: " + reply.getText());
+                    }
+                    if (reply.isChunk() && reply.getChunkIndex() == index && reply.isChunkValid()
+                            && verifier.matches(index, reply.getPayload(), Message.CHUNK_HEADER_SIZE, reply.getChunkLength())) {
+                        file.seek(index * verifier.getBlockSize());
+                        file.write(reply.getPayload(), Message.CHUNK_HEADER_SIZE, reply.getChunkLength());
+                        repaired = true;
+                    }
+                }
+                if (!repaired) {
+                    throw new IOException("第 " + index + " 块多次下载仍然损坏");
+                }
+            }
+        }
+    }
+
     // 修改createUpdateScript方法
     private void createUpdateScript() throws IOException {
         String scriptContent;
@@ -298,18 +430,8 @@ public class ClientGUI_v2 extends JFrame {
         if (!socket.isConnected()) {
             throw new IOException("连接未建立或已关闭");
         }
-        writer.println(Base64Util.encode(data)); // 按行发送
-
-        // 启动一个新线程来读取服务器响应
-        new Thread(() -> {
-            try {
-                // 读取服务端响应
-                String response = Base64Util.decode(reader.readLine());
-                messageArea.append("服务器响应: " + response + "\n");
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }).start();
+        // 服务端响应由MessageReceiver统一读取显示，避免两个线程同时读取同一连接
+        channel.sendText(data);
     }
 
     // 发送普通消息（自动添加MSG协议头）
@@ -317,32 +439,88 @@ public class ClientGUI_v2 extends JFrame {
         sendData("MSG:" + message);
     }
 
-    // 发送文件
+    // 发送文件，在后台线程中执行以免阻塞界面
     public void sendFile(String filePath) {
-        try {
-            File file = new File(filePath);
-            String fileName = file.getName();
-            long checksum = CRC32Util.calculateFile(filePath);
-            // 发送校验和
-            writer.println(Base64Util.encode("CHECKSUM:" + checksum));
-
-            String encodedFile = Base64Util.encodeFile(filePath);
-
-            // 分块发送
-            int chunkSize = 8192; // 8KB每块
-            writer.println(Base64Util.encode("FILE_START:" + fileName));
+        new Thread(() -> {
+            try {
+                File file = new File(filePath);
+                String fileName = file.getName();
+                if (UPLOAD_STREAMS > 1 && file.length() >= ParallelUploader.MIN_PARALLEL_SIZE
+                        && channel.hasFeature(MessageChannel.FEATURE_PARALLEL)) {
+                    // 大文件使用多个连接并行上传，服务端校验重组后的文件
+                    ParallelUploader uploader = new ParallelUploader(SERVER_HOST, SERVER_PORT, UPLOAD_STREAMS,
+                            ACK_WINDOW, checksumAlgorithm);
+                    uploader.setCompressionLevel(COMPRESS_LEVEL);
+                    if (uploader.upload(file)) {
+                        messageArea.append("文件已并行发送: " + fileName + " (" + UPLOAD_STREAMS + " 个连接)\n");
+                    } else {
+                        messageArea.append("服务端已有相同内容，跳过上传: " + fileName + "\n");
+                    }
+                    return;
+                }
+                String checksum;
+                boolean deduplicated;
+                long deltaBytes;
+                long compressed;
+                StreamMux current = mux;
+                if (current != null) {
+                    // 在单独的流上上传，应答由接收线程按流ID转交，不影响聊天消息和其他上传
+                    try (StreamMux.Stream stream = current.open()) {
+                        FileSender sender = new FileSender(stream.getChannel(), stream::receive, ACK_WINDOW,
+                                checksumAlgorithm);
+                        sender.setCompressionLevel(COMPRESS_LEVEL);
+                        sender.sendFile(file);
+                        checksum = sender.getLastChecksum();
+                        deduplicated = sender.isLastDeduplicated();
+                        deltaBytes = sender.getLastDeltaBytes();
+                        compressed = sender.getLastCompressedBytes();
+                    }
+                } else {
+                    synchronized (fileSender) {
+                        transferReplies.clear();
+                        transferring = true;
+                        try {
+                            // 校验值在发送时计算，随FILE_END发送，不再预先读一遍文件
+                            fileSender.sendFile(file);
+                            checksum = fileSender.getLastChecksum();
+                            deduplicated = fileSender.isLastDeduplicated();
+                            deltaBytes = fileSender.getLastDeltaBytes();
+                            compressed = fileSender.getLastCompressedBytes();
+                        } finally {
+                            transferring = false;
+                        }
+                    }
+                }
+                if (deduplicated) {
+                    messageArea.append("服务端已有相同内容，跳过上传: " + fileName + "\n");
+                    return;
+                }
+                if (deltaBytes >= 0) {
+                    messageArea.append("文件已增量发送: " + fileName + " (新数据 " + deltaBytes + " / "
+                            + file.length() + " 字节)\n");
+                    return;
+                }
+                messageArea.append("文件已发送: " + fileName + (checksum == null ? "" : " (校验和: " + checksum + ")")
+                        + (compressed < 0 ? "" : " (压缩后 " + compressed + " / " + file.length() + " 字节)") + "\n");
 
-            for (int i = 0; i < encodedFile.length(); i += chunkSize) {
-                int end = Math.min(encodedFile.length(), i + chunkSize);
-                writer.println(Base64Util.encode(encodedFile.substring(i, end)));
+            } catch (Exception e) {
+                System.err.println("文件传输失败: " + e.getMessage());
+                e.printStackTrace();
             }
+        }).start();
+    }
 
-            writer.println(Base64Util.encode("FILE_END"));
-            messageArea.append("文件已发送: " + fileName + " (校验和: " + checksum + ")\n");
-
-        } catch (Exception e) {
-            System.err.println("文件传输失败: " + e.getMessage());
-            e.printStackTrace();
+    // 等待接收线程转交的上传应答
+    private Message nextTransferReply() throws IOException {
+        try {
+            Message reply = transferReplies.poll(120, TimeUnit.SECONDS);
+            if (reply == null) {
+                throw new IOException("等待服务端确认超时");
+            }
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("上传被中断");
         }
     }
 
@@ -352,16 +530,24 @@ public class ClientGUI_v2 extends JFrame {
             try {
                 while (socket.isConnected()) {
                     try {
-                        String encodedData = reader.readLine();
-                        if (encodedData == null) {
+                        Message received = channel.receive();
+                        if (received == null) {
                             // 服务端关闭连接
                             break;
                         }
-                        String decodedData = Base64Util.decode(encodedData);
-                        messageArea.append("服务器消息: " + decodedData + "\n");
+                        if (mux != null && mux.dispatch(received)) {
+                            continue;
+                        }
+                        if (received.isText()) {
+                            if (transferring && FileSender.isTransferReply(received.getText())) {
+                                transferReplies.offer(received);
+                                continue;
+                            }
+                            messageArea.append("服务器消息: " + received.getText() + "\n");
+                        }
                     } catch (java.net.SocketTimeoutException e) {
                         // 读超时，发送心跳保持连接
-                        writer.println(Base64Util.encode("HEARTBEAT"));
+                        channel.sendText(MessageChannel.HEARTBEAT_CMD);
                         continue;
                     }
                 }
@@ -370,6 +556,9 @@ public class ClientGUI_v2 extends JFrame {
                     messageArea.append("连接异常: " + e.getMessage() + "\n");
                 }
             } finally {
+                if (mux != null) {
+                    mux.close();
+                }
                 messageArea.append("与服务器的连接已断开\n");
             }
         }
@@ -0,0 +1,292 @@
+package cn.njit.client;
+
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.CRC32Util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.Consumer;
+
+// 与服务端的一个连接：建立时完成二进制模式、功能、确认窗口和校验算法的协商，之后可以反复用于上传和发送消息
+public class ClientSession implements Closeable {
+    public static final int CONNECT_TIMEOUT = 5000;
+
+    private final Socket socket;
+    private final MessageChannel channel;
+    private final String welcome;
+    private final boolean windowNegotiated;
+    // 与服务端协商成功的校验算法，服务端不支持时为null
+    private final CRC32Util.Algorithm checksumAlgorithm;
+    private final FileSender fileSender;
+    private long heartbeats = 0;
+    // 已通过BATCH告知服务端的批次
+    private String batchId;
+    // 最近一次收到服务端应答的时间，连接池据此决定是否需要先做健康检查
+    private volatile long lastActive;
+
+    public ClientSession(String host, int port, int windowSize, CRC32Util.Algorithm algorithm) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            channel = new MessageChannel(socket);
+            Message reply = channel.receive();
+            if (reply == null) {
+                throw new IOException("服务端已关闭连接");
+            }
+            welcome = reply.getText();
+            // 协商二进制帧模式，旧服务端不支持时继续使用行模式
+            channel.negotiateBinary();
+            channel.queryFeatures();
+            windowNegotiated = FileSender.negotiateWindow(channel, windowSize);
+            checksumAlgorithm = FileSender.negotiateChecksum(channel, algorithm);
+            fileSender = new FileSender(channel, channel::receive, windowSize, checksumAlgorithm);
+            lastActive = System.currentTimeMillis();
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public MessageChannel getChannel() {
+        return channel;
+    }
+
+    // 服务端的欢迎消息
+    public String getWelcome() {
+        return welcome;
+    }
+
+    public boolean isWindowNegotiated() {
+        return windowNegotiated;
+    }
+
+    public CRC32Util.Algorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public FileSender getFileSender() {
+        return fileSender;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        fileSender.setCompressionLevel(compressionLevel);
+    }
+
+    // 通过该连接上传一个文件，返回的FileSender中有本次上传的结果
+    public FileSender upload(File file) throws IOException {
+        return upload(file, file.getName(), null);
+    }
+
+    // 以remoteName（可带相对目录）上传，contentHash为预先计算的SHA-256，可以为空
+    public FileSender upload(File file, String remoteName, String contentHash) throws IOException {
+        fileSender.sendFile(file, remoteName, contentHash);
+        lastActive = System.currentTimeMillis();
+        return fileSender;
+    }
+
+    // 上传FileBundle格式的打包文件，服务端不支持打包上传时抛出异常
+    public void uploadBundle(File bundle, String remoteName, int count) throws IOException {
+        fileSender.sendBundle(bundle, remoteName, count);
+        lastActive = System.currentTimeMillis();
+    }
+
+    // 之后在该连接上完成的上传记入批次，由finishBatch统一登记；服务端不支持时每个文件单独登记
+    public void joinBatch(String id) throws IOException {
+        if (!channel.hasFeature(MessageChannel.FEATURE_BATCH) || id.equals(batchId)) {
+            return;
+        }
+        channel.sendText(MessageChannel.BATCH_CMD + id);
+        batchId = id;
+    }
+
+    // 通知服务端登记整个批次（包括其他连接上传的文件），返回登记的文件数，服务端不支持批量登记时返回-1
+    public int finishBatch(String id) throws IOException {
+        if (!channel.hasFeature(MessageChannel.FEATURE_BATCH)) {
+            return -1;
+        }
+        channel.sendText(MessageChannel.BATCH_END_CMD + id);
+        Message reply = channel.receive();
+        if (id.equals(batchId)) {
+            batchId = null;
+        }
+        if (reply == null || reply.getText() == null || !reply.getText().startsWith(MessageChannel.BATCH_END_CMD)) {
+            throw new IOException("批量登记失败: " + (reply == null ? "连接已关闭" : reply.getText()));
+        }
+        lastActive = System.currentTimeMillis();
+        return Integer.parseInt(reply.getText().substring(MessageChannel.BATCH_END_CMD.length()));
+    }
+
+    // 发送普通消息，返回服务端的回执
+    public String sendMessage(String message) throws IOException {
+        channel.sendText("MSG:" + message);
+        Message reply = channel.receive();
+        if (reply == null) {
+            throw new IOException("服务端已关闭连接");
+        }
+        lastActive = System.currentTimeMillis();
+        return reply.getText();
+    }
+
+    // 查询服务端的文件记录，criteria为空时列出全部，否则为 name=前缀&hash=内容哈希&from=时间&to=时间；
+    // 每条记录（ID\t上传时间\t内容哈希\t文件名）交给out，返回下一页的起始ID，0表示没有更多
+    public long listFiles(String criteria, long afterId, int limit, Consumer<String> out) throws IOException {
+        if (!channel.hasFeature(MessageChannel.FEATURE_LIST)) {
+            throw new IOException("服务端不支持查询文件记录");
+        }
+        channel.sendText(listCommand(criteria, afterId, limit));
+        long next = receiveRecords(channel::receive, out);
+        lastActive = System.currentTimeMillis();
+        return next;
+    }
+
+    // 生成LIST或SEARCH命令
+    static String listCommand(String criteria, long afterId, int limit) {
+        if (criteria == null || criteria.isEmpty()) {
+            return MessageChannel.LIST_CMD + afterId + ":" + limit;
+        }
+        return MessageChannel.SEARCH_CMD + afterId + ":" + limit + ":" + encodeCriteria(criteria);
+    }
+
+    // 查询条件中的各个值按URL编码
+    static String encodeCriteria(String criteria) {
+        if (criteria == null) {
+            return "";
+        }
+        StringBuilder encoded = new StringBuilder();
+        for (String pair : criteria.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            if (encoded.length() > 0) {
+                encoded.append('&');
+            }
+            encoded.append(pair, 0, eq + 1)
+                    .append(URLEncoder.encode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return encoded.toString();
+    }
+
+    // 读取查询应答直到LIST_END，返回下一页的起始ID
+    static long receiveRecords(FileSender.ReplySource replies, Consumer<String> out) throws IOException {
+        while (true) {
+            Message reply = replies.next();
+            String text = reply == null ? null : reply.getText();
+            if (text == null) {
+                throw new IOException("服务端已关闭连接");
+            }
+            if (text.startsWith(MessageChannel.RECORD_PREFIX)) {
+                out.accept(text.substring(MessageChannel.RECORD_PREFIX.length()));
+            } else if (text.startsWith(MessageChannel.LIST_END_CMD)) {
+                return Long.parseLong(text.substring(MessageChannel.LIST_END_CMD.length()));
+            } else if (text.startsWith("ERROR:")) {
+                throw new IOException("查询失败: " + text.substring(6));
+            }
+        }
+    }
+
+    // 下载服务端文件name的一段写入out，range为HTTP Range形式（为空时下载整个文件），返回应答中的范围和文件信息
+    public FileDownloader.Reply download(String range, String name, OutputStream out) throws IOException {
+        if (!channel.hasFeature(MessageChannel.FEATURE_DOWNLOAD)) {
+            throw new IOException("服务端不支持下载文件");
+        }
+        channel.sendText(MessageChannel.DOWNLOAD_CMD + range + ":" + name);
+        FileDownloader.Reply reply = receiveDownload(channel, channel::receive, out);
+        lastActive = System.currentTimeMillis();
+        return reply;
+    }
+
+    // 读取DOWNLOAD应答和之后的数据直到FILE_END：二进制控制流上是一个文件流帧，多路复用流上是数据帧，
+    // 行模式下是Base64编码的数据行
+    static FileDownloader.Reply receiveDownload(MessageChannel channel, FileSender.ReplySource replies,
+                                                OutputStream out) throws IOException {
+        Message header = replies.next();
+        String text = header == null ? null : header.getText();
+        if (text == null) {
+            throw new IOException("服务端已关闭连接");
+        }
+        if (!text.startsWith(MessageChannel.DOWNLOAD_CMD)) {
+            throw new IOException("下载失败: " + (text.startsWith("ERROR:") ? text.substring(6) : text));
+        }
+        FileDownloader.Reply reply = FileDownloader.Reply.parse(text.substring(MessageChannel.DOWNLOAD_CMD.length()));
+        long received = 0;
+        while (true) {
+            Message message = replies.next();
+            if (message == null) {
+                throw new EOFException("下载未完成，连接已关闭");
+            }
+            if (message.isStream()) {
+                channel.readStream(out, message.getStreamLength());
+                received += message.getStreamLength();
+            } else if (message.isData()) {
+                out.write(message.getPayload());
+                received += message.getPayload().length;
+            } else if ("FILE_END".equals(message.getText())) {
+                break;
+            } else if (message.getText().startsWith("ERROR:")) {
+                throw new IOException("下载失败: " + message.getText().substring(6));
+            } else {
+                byte[] data = Base64.getDecoder().decode(message.getText());
+                out.write(data);
+                received += data.length;
+            }
+        }
+        if (received != reply.length) {
+            throw new IOException("下载数据不完整: " + received + " / " + reply.length + " 字节");
+        }
+        return reply;
+    }
+
+    // 健康检查：发送HEARTBEAT:序号，超时前收到应答说明连接可用（旧服务端回复未知命令，同样说明可用）；
+    // 检查失败的连接已无法确定读到哪里，直接关闭
+    public boolean ping(int timeoutMillis) {
+        try {
+            int previous = socket.getSoTimeout();
+            socket.setSoTimeout(timeoutMillis);
+            try {
+                channel.sendText(MessageChannel.HEARTBEAT_CMD + ":" + (++heartbeats));
+                if (channel.receive() != null) {
+                    lastActive = System.currentTimeMillis();
+                    return true;
+                }
+            } finally {
+                socket.setSoTimeout(previous);
+            }
+        } catch (IOException e) {
+            // 连接已断开或超时
+        }
+        close();
+        return false;
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed() && socket.isConnected();
+    }
+
+    // 距最近一次收到应答的毫秒数
+    public long getIdleMillis() {
+        return System.currentTimeMillis() - lastActive;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("关闭连接时出错: " + e.getMessage());
+        }
+    }
+}
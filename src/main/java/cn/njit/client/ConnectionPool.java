@@ -0,0 +1,144 @@
+package cn.njit.client;
+
+import cn.njit.util.CRC32Util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端连接池：保留已完成协商的长连接，批量上传时反复使用，省去每个文件建立连接、读取欢迎消息和协商的往返。
+ * 空闲连接定期发送心跳，既检查连接是否可用，也避免被服务端的读超时断开；取用空闲较久的连接前先做一次健康检查。
+ */
+public class ConnectionPool implements Closeable {
+    // 空闲连接的心跳间隔，需小于服务端的读超时（默认120秒）
+    private static final long KEEP_ALIVE_MILLIS = Long.getLong("client.keepAlive", 30000);
+    // 空闲超过该时间的连接取用前先做健康检查
+    private static final long VALIDATE_AFTER_MILLIS = 5000;
+    private static final int PING_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private final int maxSize;
+    private final int windowSize;
+    private final CRC32Util.Algorithm checksumAlgorithm;
+    private int compressionLevel = 0;
+    // 最近使用的连接在队首，最久未用的在队尾
+    private final BlockingDeque<ClientSession> idle = new LinkedBlockingDeque<>();
+    // 借出（或正在做心跳）的连接数上限，新连接只在没有空闲连接时建立，因此连接总数不超过该上限
+    private final Semaphore permits;
+    private final ScheduledExecutorService keepAlive;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String host, int port, int maxSize, int windowSize, CRC32Util.Algorithm checksumAlgorithm) {
+        this.host = host;
+        this.port = port;
+        this.maxSize = Math.max(1, maxSize);
+        this.windowSize = windowSize;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.permits = new Semaphore(this.maxSize, true);
+        this.keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepAlive.scheduleWithFixedDelay(this::sendHeartbeats, KEEP_ALIVE_MILLIS, KEEP_ALIVE_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // 取得一个可用的连接，连接都被借出时等待归还
+    public ClientSession borrow() throws IOException {
+        if (closed) {
+            throw new IOException("连接池已关闭");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待连接被中断");
+        }
+        try {
+            ClientSession session;
+            while ((session = idle.pollFirst()) != null) {
+                boolean usable = session.getIdleMillis() < VALIDATE_AFTER_MILLIS ? session.isOpen()
+                        : session.ping(PING_TIMEOUT);
+                if (usable) {
+                    return session;
+                }
+                session.close();
+            }
+            session = new ClientSession(host, port, windowSize, checksumAlgorithm);
+            session.setCompressionLevel(compressionLevel);
+            return session;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // 归还正常使用完的连接
+    public void release(ClientSession session) {
+        if (closed || !session.isOpen()) {
+            session.close();
+        } else {
+            idle.offerFirst(session);
+        }
+        permits.release();
+    }
+
+    // 上传或通信出错的连接不确定读到了哪里，不再使用
+    public void invalidate(ClientSession session) {
+        session.close();
+        permits.release();
+    }
+
+    // 依次检查最久未用的空闲连接，检查期间占用一个名额，不会与取用的线程同时使用同一连接
+    private void sendHeartbeats() {
+        int count = idle.size();
+        for (int i = 0; i < count && !closed; i++) {
+            if (!permits.tryAcquire()) {
+                return;
+            }
+            try {
+                ClientSession session = idle.pollLast();
+                if (session == null) {
+                    return;
+                }
+                if (session.getIdleMillis() < KEEP_ALIVE_MILLIS) {
+                    // 其余连接都比它更近使用过
+                    idle.offerLast(session);
+                    return;
+                }
+                if (session.ping(PING_TIMEOUT)) {
+                    idle.offerFirst(session);
+                }
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        keepAlive.shutdownNow();
+        ClientSession session;
+        while ((session = idle.pollFirst()) != null) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package cn.njit.client;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.ContentHash;
+import cn.njit.util.FileBundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 目录上传：遍历目录树（可按glob过滤），以"目录名/相对路径"作为文件名上传，服务端按该路径登记。
+ * 三段流水线：调用线程遍历目录，哈希线程读取文件计算SHA-256（用于去重查询，小文件同时被读入页缓存），
+ * 发送线程各占用连接池中的一个连接依次上传。各段之间是有界队列，目录再大内存占用也不变。
+ * 所有文件完成后发送BATCH_END，服务端在一个事务中登记全部文件，而不是每个文件一次写入。
+ * 服务端支持打包上传时，小文件由发送线程攒成FileBundle包作为一次上传发送，省去每个文件各自的协商、确认和结束往返。
+ */
+public class DirectoryUploader {
+    // 各段之间等待处理的文件数上限
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int HASH_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // 上传中断时换一个连接重试的次数
+    private static final int MAX_ATTEMPTS = 3;
+    // 小于该大小的文件打包发送，0表示不打包
+    private static final long BUNDLE_THRESHOLD = Long.getLong("client.bundleThreshold", 64 * 1024);
+    // 一个包的文件数和总大小上限，达到任一上限即发送
+    private static final int BUNDLE_MAX_FILES = 1000;
+    private static final long BUNDLE_MAX_BYTES = 4 * 1024 * 1024;
+    // 通知下一段没有更多文件
+    private static final PendingFile END = new PendingFile(null, null);
+
+    private final ConnectionPool pool;
+
+    public DirectoryUploader(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // 等待上传的文件及其在服务端的文件名，hash在哈希阶段填入
+    private static class PendingFile {
+        private final File file;
+        private final String remoteName;
+        private String hash;
+
+        private PendingFile(File file, String remoteName) {
+            this.file = file;
+            this.remoteName = remoteName;
+        }
+    }
+
+    // 上传root下所有匹配glob的文件（glob为空时上传全部），glob按相对路径或文件名匹配，如 *.txt、**/*.log
+    public List<UploadResult> upload(Path root, String glob) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("目录不存在: " + root);
+        }
+        Path base = root.toAbsolutePath().normalize();
+        String prefix = base.getFileName() == null ? "" : base.getFileName() + "/";
+        PathMatcher matcher = glob == null || glob.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+        // 服务端支持去重时才需要预先计算哈希
+        boolean dedup;
+        boolean bundling;
+        ClientSession probe = pool.borrow();
+        try {
+            dedup = probe.getChannel().hasFeature(MessageChannel.FEATURE_DEDUP);
+            bundling = BUNDLE_THRESHOLD > 0 && probe.getChannel().hasFeature(MessageChannel.FEATURE_BUNDLE);
+        } finally {
+            pool.release(probe);
+        }
+
+        String batchId = UUID.randomUUID().toString();
+        BlockingQueue<PendingFile> hashQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<PendingFile> sendQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        List<UploadResult> results = Collections.synchronizedList(new ArrayList<>());
+        int senders = pool.getMaxSize();
+        ExecutorService workers = Executors.newFixedThreadPool(HASH_THREADS + senders);
+        try {
+            List<Future<?>> hashers = new ArrayList<>();
+            for (int i = 0; i < HASH_THREADS; i++) {
+                hashers.add(workers.submit(() -> {
+                    hash(hashQueue, sendQueue, dedup, bundling, results);
+                    return null;
+                }));
+            }
+            List<Future<?>> uploads = new ArrayList<>();
+            for (int i = 0; i < senders; i++) {
+                uploads.add(workers.submit(() -> {
+                    send(sendQueue, batchId, bundling, results);
+                    return null;
+                }));
+            }
+
+            walk(base, prefix, matcher, hashQueue, results);
+            for (int i = 0; i < HASH_THREADS; i++) {
+                hashQueue.put(END);
+            }
+            for (Future<?> future : hashers) {
+                future.get();
+            }
+            for (int i = 0; i < senders; i++) {
+                sendQueue.put(END);
+            }
+            for (Future<?> future : uploads) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("目录上传被中断", e);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        ClientSession session = pool.borrow();
+        try {
+            int registered = session.finishBatch(batchId);
+            if (registered >= 0) {
+                System.out.println("服务端已登记 " + registered + " 个文件");
+            }
+            pool.release(session);
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(session);
+            throw e;
+        }
+        return results;
+    }
+
+    private void walk(Path base, String prefix, PathMatcher matcher, BlockingQueue<PendingFile> queue,
+                      List<UploadResult> results) throws IOException, InterruptedException {
+        Files.walkFileTree(base, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path relative = base.relativize(file);
+                if (matcher != null && !matcher.matches(relative) && !matcher.matches(file.getFileName())) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = prefix + relative.toString().replace(File.separatorChar, '/');
+                try {
+                    queue.put(new PendingFile(file.toFile(), name));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // 无法读取的文件或目录记为失败，继续上传其他文件
+                results.add(UploadResult.failed(file.toFile(), e.getMessage()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    // 打包发送的小文件不做去重查询，不需要计算哈希（服务端保存时仍按内容去重）
+    private void hash(BlockingQueue<PendingFile> in, BlockingQueue<PendingFile> out, boolean dedup, boolean bundling,
+                      List<UploadResult> results) throws InterruptedException {
+        PendingFile next;
+        while ((next = in.take()) != END) {
+            if (dedup && !(bundling && isSmall(next.file))) {
+                try {
+                    next.hash = ContentHash.ofFile(next.file);
+                } catch (IOException e) {
+                    results.add(UploadResult.failed(next.file, e.getMessage()));
+                    continue;
+                }
+            }
+            out.put(next);
+        }
+    }
+
+    private static boolean isSmall(File file) {
+        return file.length() < BUNDLE_THRESHOLD;
+    }
+
+    // 每个发送线程在整个目录上传期间占用同一个连接，出错时换一个连接重试
+    private void send(BlockingQueue<PendingFile> queue, String batchId, boolean bundling, List<UploadResult> results)
+            throws InterruptedException {
+        Sender sender = new Sender(batchId);
+        List<PendingFile> bundle = new ArrayList<>();
+        long bundleBytes = 0;
+        try {
+            PendingFile next;
+            while ((next = queue.take()) != END) {
+                if (bundling && isSmall(next.file)) {
+                    bundle.add(next);
+                    bundleBytes += next.file.length();
+                    if (bundle.size() >= BUNDLE_MAX_FILES || bundleBytes >= BUNDLE_MAX_BYTES) {
+                        sendBundle(sender, bundle, results);
+                        bundle.clear();
+                        bundleBytes = 0;
+                    }
+                    continue;
+                }
+                PendingFile file = next;
+                try {
+                    FileSender result = sender.call(session -> session.upload(file.file, file.remoteName, file.hash));
+                    results.add(UploadResult.of(file.file, result));
+                } catch (IOException e) {
+                    results.add(UploadResult.failed(file.file, e.getMessage()));
+                }
+            }
+            sendBundle(sender, bundle, results);
+        } finally {
+            sender.release();
+        }
+    }
+
+    // 把攒下的小文件读入内存写成一个包发送，读取失败的文件单独记为失败
+    private void sendBundle(Sender sender, List<PendingFile> files, List<UploadResult> results) {
+        List<FileBundle.Entry> entries = new ArrayList<>();
+        List<File> packed = new ArrayList<>();
+        for (PendingFile file : files) {
+            try {
+                entries.add(new FileBundle.Entry(file.remoteName, Files.readAllBytes(file.file.toPath())));
+                packed.add(file.file);
+            } catch (IOException e) {
+                results.add(UploadResult.failed(file.file, e.getMessage()));
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile("upload-", ".bundle");
+            FileBundle.write(entries, temp);
+            File bundle = temp;
+            sender.call(session -> {
+                session.uploadBundle(bundle, bundle.getName(), entries.size());
+                return null;
+            });
+            for (File file : packed) {
+                results.add(UploadResult.bundled(file));
+            }
+        } catch (IOException e) {
+            for (File file : packed) {
+                results.add(UploadResult.failed(file, e.getMessage()));
+            }
+        } finally {
+            if (temp != null && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    private interface SessionTask<T> {
+        T run(ClientSession session) throws IOException;
+    }
+
+    // 发送线程占用的连接，第一次使用时从连接池取得并加入批次
+    private class Sender {
+        private final String batchId;
+        private ClientSession session;
+
+        private Sender(String batchId) {
+            this.batchId = batchId;
+        }
+
+        // 在该连接上执行一次上传，出错时换一个连接重试，全部失败时抛出最后一次的异常
+        private <T> T call(SessionTask<T> task) throws IOException {
+            IOException error = null;
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                try {
+                    if (session == null) {
+                        session = pool.borrow();
+                        session.joinBatch(batchId);
+                    }
+                    return task.run(session);
+                } catch (IOException | RuntimeException e) {
+                    error = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+                    if (session != null) {
+                        pool.invalidate(session);
+                        session = null;
+                    }
+                }
+            }
+            throw error;
+        }
+
+        private void release() {
+            if (session != null) {
+                pool.release(session);
+                session = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package cn.njit.client;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.ContentHash;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 下载服务端已上传的文件：先写入“目标文件.part”，中断后再次下载时从.part的长度处续传；
+// 较大的文件分成若干区间，每个区间通过单独的连接同时下载，按偏移写入同一个文件；
+// 全部接收后按服务端的内容哈希校验，再改名为目标文件
+public class FileDownloader {
+    // 剩余部分小于该大小时单连接下载即可
+    public static final long MIN_PARALLEL_SIZE = ParallelUploader.MIN_PARALLEL_SIZE;
+    public static final String PART_SUFFIX = ".part";
+
+    // DOWNLOAD应答：本次发送的范围、文件大小和内容哈希
+    public static class Reply {
+        public long start;
+        public long length;
+        public long size;
+        public String hash;
+
+        // 起点:长度:文件大小:内容哈希
+        static Reply parse(String text) throws IOException {
+            String[] parts = text.split(":", 4);
+            try {
+                Reply reply = new Reply();
+                reply.start = Long.parseLong(parts[0]);
+                reply.length = Long.parseLong(parts[1]);
+                reply.size = Long.parseLong(parts[2]);
+                reply.hash = parts[3];
+                return reply;
+            } catch (RuntimeException e) {
+                throw new IOException("无效的下载应答: " + text);
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int streams;
+    private final int windowSize;
+
+    public FileDownloader(String host, int port, int streams, int windowSize) {
+        this.host = host;
+        this.port = port;
+        this.streams = Math.max(1, streams);
+        this.windowSize = windowSize;
+    }
+
+    // 把服务端的文件name下载为target，返回文件大小
+    public long download(String name, File target) throws IOException {
+        File part = new File(target.getPath() + PART_SUFFIX);
+        Reply info;
+        long offset;
+        try (ClientSession session = openSession()) {
+            // 先取1个字节得到文件大小和内容哈希，再决定续传位置和是否并行
+            info = session.download("0-0", name, OutputStream.nullOutputStream());
+            offset = part.length();
+            if (offset > info.size) {
+                // 服务端的文件已变化，之前的部分不可用
+                offset = 0;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                file.setLength(offset);
+            }
+            if (offset < info.size && (streams == 1 || info.size - offset < MIN_PARALLEL_SIZE)) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(part, true))) {
+                    session.download(offset + "-", name, out);
+                }
+                offset = info.size;
+            }
+        }
+        if (offset < info.size) {
+            downloadParallel(name, part, offset, info.size);
+        }
+
+        // 续传的部分可能来自服务端之前的版本，校验失败时丢弃重新下载
+        String hash = ContentHash.ofFile(part);
+        if (!hash.equals(info.hash)) {
+            Files.deleteIfExists(part.toPath());
+            throw new IOException("下载文件校验失败: 内容哈希不匹配");
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return info.size;
+    }
+
+    // 把[offset, size)按数据块对齐分成若干区间同时下载；中断时把.part截断到连续接收完的位置，之后可以续传
+    private void downloadParallel(String name, File part, long offset, long size) throws IOException {
+        long blockSize = MessageChannel.BINARY_BLOCK_SIZE;
+        long rangeSize = (size - offset + streams - 1) / streams;
+        rangeSize = Math.max(blockSize, (rangeSize + blockSize - 1) / blockSize * blockSize);
+        int rangeCount = (int) Math.max(1, (size - offset + rangeSize - 1) / rangeSize);
+        // 各区间已写入的字节数
+        AtomicLong[] written = new AtomicLong[rangeCount];
+
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            file.setLength(size);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(rangeCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < rangeCount; i++) {
+                long start = offset + i * rangeSize;
+                long end = Math.min(size, start + rangeSize);
+                AtomicLong count = written[i] = new AtomicLong();
+                futures.add(pool.submit(() -> {
+                    // 每个区间单独打开文件，中断一个区间的写入不会关闭其他区间使用的文件通道
+                    try (ClientSession session = openSession();
+                         RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                        session.download(start + "-" + (end - 1), name, new RangeOutputStream(file, start, count));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            pool.shutdownNow();
+            try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                file.setLength(completedLength(offset, rangeSize, size, written));
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("并行下载被中断", e);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // 从offset开始连续接收完的位置：依次累加已完成的区间，遇到第一个未完成的区间时加上它已写入的部分
+    private static long completedLength(long offset, long rangeSize, long size, AtomicLong[] written) {
+        long length = offset;
+        for (int i = 0; i < written.length; i++) {
+            long expected = Math.min(rangeSize, size - offset - i * rangeSize);
+            length += written[i].get();
+            if (written[i].get() < expected) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    // 每个区间使用独立的连接，与主连接一样完成协商
+    private ClientSession openSession() throws IOException {
+        return new ClientSession(host, port, windowSize, null);
+    }
+
+    // 从position开始顺序写入文件的输出流，多个区间共用同一个文件，写入位置互不重叠
+    private static class RangeOutputStream extends OutputStream {
+        private final RandomAccessFile file;
+        private final AtomicLong written;
+        private long position;
+
+        RangeOutputStream(RandomAccessFile file, long position, AtomicLong written) {
+            this.file = file;
+            this.position = position;
+            this.written = written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += file.getChannel().write(buffer, position);
+            }
+            written.addAndGet(len);
+        }
+    }
+}
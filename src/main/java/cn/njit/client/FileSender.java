@@ -0,0 +1,468 @@
+package cn.njit.client;
+
+import cn.njit.delta.BlockSignature;
+import cn.njit.delta.DeltaEncoder;
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.BlockCompressor;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+import cn.njit.util.MappedFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Client与ClientGUI_v2共用的文件上传流程。
+ * 采用滑动窗口确认：最多有windowSize个数据块未被确认，服务端每收到一半窗口的块回复一次累计确认ACK:n，
+ * 因此发送速度只受带宽限制，而不是每块一个往返。旧服务端对每块回复"文件块已接收"，同样按一块计数。
+ * 协商了校验算法时，校验值在读取发送的同时计算，随FILE_END发送给服务端，文件只读取一次。
+ * 服务端支持块校验时每块以CHUNK帧发送，服务端回复RESEND:n时只重新读取并发送第n块。
+ * 服务端按内容去重时，上传前先发送文件的SHA-256，服务端已有相同内容则不再发送数据。
+ * 服务端保存过同名文件的旧版本时按其块签名增量上传，只发送变化的部分。
+ * 设置了压缩级别且抽样表明文件可压缩时，每次上传前协商压缩，每块单独压缩后发送。
+ */
+public class FileSender {
+    // 读取服务端应答的方式：Client直接从连接读取，ClientGUI_v2从接收线程转交的队列读取
+    public interface ReplySource {
+        Message next() throws IOException;
+    }
+
+    private static final String CHUNK_ACK = "SERVER:文件块已接收";
+    private static final String START_REPLY = "SERVER:开始接收文件";
+    private static final String END_REPLY = "SERVER:文件已接收";
+    private static final String RESUME_REPLY = "RESUME_OFFSET:";
+    private static final String ERROR_REPLY = "ERROR:";
+    private static final String HAVE_YES = MessageChannel.HAVE_CMD + "YES";
+    // 小文件的签名和指令开销与直接发送相差无几，不做增量上传
+    public static final long DELTA_MIN_SIZE = 1024 * 1024;
+    // 区分客户端的标识，计入续传ID
+    private static final String CLIENT_KEY = clientKey();
+
+    private final MessageChannel channel;
+    private final ReplySource replies;
+    private final int windowSize;
+    // 协商的校验算法，为空表示服务端不支持，不发送校验值
+    private final CRC32Util.Algorithm checksumAlgorithm;
+    private Checksum checksum;
+    // 当前发送的文件及区间，用于重传损坏的块
+    private File currentFile;
+    private long rangeStart;
+    private long rangeEnd;
+    private int blockSize;
+    private boolean chunkMode;
+    private long sentBlocks;
+    private long ackedBlocks;
+    private boolean lastDeduplicated;
+    // 最近一次增量上传实际发送的新数据字节数，不是增量上传时为-1
+    private long lastDeltaBytes = -1;
+    // Deflater压缩级别，0表示不压缩
+    private int compressionLevel = 0;
+    // 本次上传协商了压缩时的压缩器，以及压缩后发送的字节数
+    private BlockCompressor compressor;
+    private long compressedBytes = -1;
+
+    public FileSender(MessageChannel channel, ReplySource replies, int windowSize) {
+        this(channel, replies, windowSize, null);
+    }
+
+    public FileSender(MessageChannel channel, ReplySource replies, int windowSize,
+                      CRC32Util.Algorithm checksumAlgorithm) {
+        this.channel = channel;
+        this.replies = replies;
+        this.windowSize = Math.max(1, windowSize);
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    // 判断是否为上传流程需要处理的应答
+    public static boolean isTransferReply(String text) {
+        return text.startsWith(MessageChannel.ACK_PREFIX) || text.startsWith(MessageChannel.RESEND_PREFIX)
+                || CHUNK_ACK.equals(text)
+                || START_REPLY.equals(text) || END_REPLY.equals(text)
+                || text.startsWith(RESUME_REPLY) || text.startsWith(MessageChannel.HAVE_CMD)
+                || text.startsWith(MessageChannel.DELTA_SIG_CMD) || text.startsWith(MessageChannel.COMPRESS_CMD)
+                || text.startsWith(MessageChannel.BUNDLE_CMD)
+                || text.startsWith(ERROR_REPLY);
+    }
+
+    // 告知服务端窗口大小，旧服务端会回复未知命令，此时按每块确认处理
+    public static boolean negotiateWindow(MessageChannel channel, int windowSize) throws IOException {
+        channel.sendText(MessageChannel.ACK_WINDOW_CMD + windowSize);
+        Message reply = channel.receive();
+        return reply != null && (MessageChannel.ACK_WINDOW_CMD + windowSize).equals(reply.getText());
+    }
+
+    // 协商上传校验算法，服务端不支持时返回null
+    public static CRC32Util.Algorithm negotiateChecksum(MessageChannel channel, CRC32Util.Algorithm algorithm)
+            throws IOException {
+        if (algorithm == null || !channel.hasFeature(MessageChannel.FEATURE_CHECKSUM)) {
+            return null;
+        }
+        channel.sendText(MessageChannel.CHECKSUM_ALGO_CMD + algorithm.name());
+        Message reply = channel.receive();
+        boolean accepted = reply != null && (MessageChannel.CHECKSUM_ALGO_CMD + algorithm.name()).equals(reply.getText());
+        return accepted ? algorithm : null;
+    }
+
+    // 最近一次上传的校验值（算法:十六进制值），未协商校验算法时为null
+    public String getLastChecksum() {
+        return checksum == null ? null : checksumAlgorithm + ":" + Long.toHexString(checksum.getValue());
+    }
+
+    // 最近一次上传是否因服务端已有相同内容而跳过了数据发送
+    public boolean isLastDeduplicated() {
+        return lastDeduplicated;
+    }
+
+    // 询问服务端是否已保存相同内容，是则服务端直接记录该文件名，返回true；服务端不支持去重时返回false
+    public boolean offerExisting(File file) throws IOException {
+        return offerExisting(file, file.getName(), null);
+    }
+
+    // contentHash为空时读取文件计算
+    public boolean offerExisting(File file, String remoteName, String contentHash) throws IOException {
+        if (!channel.hasFeature(MessageChannel.FEATURE_DEDUP)) {
+            return false;
+        }
+        String hash = contentHash != null ? contentHash : ContentHash.ofFile(file);
+        channel.sendText(MessageChannel.HAVE_CMD + hash + ":" + remoteName);
+        return HAVE_YES.equals(awaitReply(MessageChannel.HAVE_CMD));
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    // 最近一次上传压缩后发送的字节数，未压缩时为-1
+    public long getLastCompressedBytes() {
+        return compressedBytes;
+    }
+
+    // 最近一次增量上传发送的新数据字节数，未使用增量上传时为-1
+    public long getLastDeltaBytes() {
+        return lastDeltaBytes;
+    }
+
+    public void sendFile(File file) throws IOException {
+        sendFile(file, file.getName(), null);
+    }
+
+    // 以remoteName（可以带相对目录）上传文件；contentHash为预先计算的SHA-256，为空时需要时再读取文件计算
+    public void sendFile(File file, String remoteName, String contentHash) throws IOException {
+        sentBlocks = 0;
+        ackedBlocks = 0;
+        checksum = null;
+        lastDeltaBytes = -1;
+        compressedBytes = -1;
+        lastDeduplicated = offerExisting(file, remoteName, contentHash);
+        if (lastDeduplicated) {
+            return;
+        }
+        checksum = checksumAlgorithm == null ? null : CRC32Util.newChecksum(checksumAlgorithm);
+        if (sendDelta(file, remoteName)) {
+            return;
+        }
+        negotiateCompression(file);
+        sendWhole(file, remoteName);
+    }
+
+    // 上传FileBundle格式的打包文件（count个小文件），服务端解包后逐个保存，并在一个事务中登记
+    public void sendBundle(File bundle, String remoteName, int count) throws IOException {
+        checksum = null;
+        lastDeduplicated = false;
+        lastDeltaBytes = -1;
+        compressedBytes = -1;
+        if (!channel.hasFeature(MessageChannel.FEATURE_BUNDLE)) {
+            throw new IOException("服务端不支持打包上传");
+        }
+        // 先协商压缩再声明打包，两者都只作用于紧接着开始的这次上传
+        negotiateCompression(bundle);
+        String command = MessageChannel.BUNDLE_CMD + count;
+        channel.sendText(command);
+        if (!command.equals(awaitReply(MessageChannel.BUNDLE_CMD))) {
+            throw new IOException("打包上传协商失败");
+        }
+        sendWhole(bundle, remoteName);
+    }
+
+    // 完整上传（服务端支持续传时从已保存的位置继续），压缩已在此之前协商
+    private void sendWhole(File file, String remoteName) throws IOException {
+        sentBlocks = 0;
+        ackedBlocks = 0;
+        checksum = checksumAlgorithm == null ? null : CRC32Util.newChecksum(checksumAlgorithm);
+
+        long offset = 0;
+        if (channel.hasFeature(MessageChannel.FEATURE_RESUME)) {
+            // 询问服务端该传输已保存的字节数，只发送剩余部分
+            channel.sendText("FILE_RESUME:" + transferId(file) + ":" + remoteName);
+            String reply = awaitReply(RESUME_REPLY);
+            offset = Math.min(file.length(), Long.parseLong(reply.substring(RESUME_REPLY.length())));
+        } else {
+            channel.sendText("FILE_START:" + remoteName);
+        }
+
+        sendBlocks(file, offset, file.length() - offset, true);
+        finishTransfer();
+    }
+
+    // 服务端有同名文件的旧版本时增量上传，返回false表示需要完整上传（包括重组结果校验失败的情况）
+    private boolean sendDelta(File file, String remoteName) throws IOException {
+        if (file.length() < DELTA_MIN_SIZE || !channel.hasFeature(MessageChannel.FEATURE_DELTA)) {
+            return false;
+        }
+        channel.sendText(MessageChannel.DELTA_SIG_CMD + remoteName);
+        String reply = awaitReply(MessageChannel.DELTA_SIG_CMD).substring(MessageChannel.DELTA_SIG_CMD.length());
+        if (reply.isEmpty()) {
+            return false;
+        }
+        String[] parts = reply.split(":", 2);
+        BlockSignature signature = BlockSignature.parse(parts[1]);
+
+        negotiateCompression(file);
+        channel.sendText(MessageChannel.DELTA_START_CMD + parts[0] + ":" + signature.getBlockSize() + ":" + remoteName);
+        // 增量数据不能按块序号重传，使用普通数据块，由结束时的校验值检查重组结果
+        chunkMode = false;
+        int size = channel.getBlockSize();
+        DeltaEncoder encoder = new DeltaEncoder(signature);
+        try {
+            // 服务端保存的旧版本已不可用时拒绝DELTA_START，同样改为完整上传
+            awaitReply(START_REPLY);
+            // 编码时读取了整个新文件，同时计算整体校验值
+            try (InputStream in = checksum == null ? new FileInputStream(file)
+                    : new CheckedInputStream(new FileInputStream(file), checksum)) {
+                encoder.encode(in, new DeltaEncoder.Sink() {
+                    @Override
+                    public void literal(byte[] data, int off, int len) throws IOException {
+                        for (int i = 0; i < len; i += size) {
+                            sendBlock(data, off + i, Math.min(size, len - i));
+                        }
+                    }
+
+                    @Override
+                    public void copy(long index, long count) throws IOException {
+                        channel.sendText(MessageChannel.DELTA_COPY_CMD + index + ":" + count);
+                    }
+                });
+            }
+            finishTransfer();
+        } catch (IOException e) {
+            // 服务端拒绝增量上传、增量数据损坏或服务端复制旧版本失败（等待确认时收到错误）时不能只重传某一块，改为完整上传；
+            // 连接已断开时完整上传同样会失败并抛出异常
+            System.err.println("增量上传失败，改为完整上传: " + e.getMessage());
+            compressedBytes = -1;
+            return false;
+        }
+        lastDeltaBytes = encoder.getLiteralBytes();
+        return true;
+    }
+
+    // 发送文件的一个区间，用于多连接并行上传；服务端在所有区间完成后用fileChecksum（整个文件的CRC32或SHA-256内容哈希）
+    // 校验重组后的文件，协商了校验算法时每个区间还单独校验
+    public void sendRange(File file, String transferId, int streams, String fileChecksum,
+                          long offset, long length) throws IOException {
+        sentBlocks = 0;
+        ackedBlocks = 0;
+        checksum = checksumAlgorithm == null ? null : CRC32Util.newChecksum(checksumAlgorithm);
+        compressedBytes = -1;
+
+        negotiateCompression(file);
+        channel.sendText("FILE_RANGE:" + transferId + ":" + streams + ":" + file.length() + ":"
+                + (fileChecksum == null ? "" : fileChecksum) + ":" + offset + ":" + file.getName());
+        awaitReply(START_REPLY);
+
+        sendBlocks(file, offset, length, false);
+        finishTransfer();
+    }
+
+    // includePrefix为true时（续传）offset之前已保存的部分也要计入整个文件的校验值
+    private void sendBlocks(File file, long offset, long length, boolean includePrefix) throws IOException {
+        currentFile = file;
+        rangeStart = offset;
+        rangeEnd = offset + length;
+        blockSize = channel.getBlockSize();
+        chunkMode = channel.isBinary() && channel.hasFeature(MessageChannel.FEATURE_CHUNK_CHECKSUM);
+        byte[] buffer = new byte[blockSize];
+        if (MappedFile.worthMapping(length)) {
+            sendMappedBlocks(file, offset, length, includePrefix, buffer);
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            if (checksum != null && includePrefix) {
+                long skipped = 0;
+                int len;
+                while (skipped < offset
+                        && (len = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, offset - skipped))) > 0) {
+                    checksum.update(buffer, 0, len);
+                    skipped += len;
+                }
+            } else {
+                in.getChannel().position(offset);
+            }
+            long remaining = length;
+            int len;
+            while (remaining > 0
+                    && (len = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                if (checksum != null) {
+                    checksum.update(buffer, 0, len);
+                }
+                sendBlock(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+    }
+
+    // 大文件通过内存映射读取：续传前缀的校验值直接在映射的数据上计算，数据块从映射中复制到buffer发送
+    private void sendMappedBlocks(File file, long offset, long length, boolean includePrefix, byte[] buffer)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (checksum != null && includePrefix) {
+                MappedFile.forEach(in, 0, offset, checksum::update);
+            }
+            MappedFile.forEachBlock(in, offset, length, buffer, (data, len) -> {
+                if (checksum != null) {
+                    checksum.update(data, 0, len);
+                }
+                sendBlock(data, 0, len);
+            });
+        }
+    }
+
+    // 发送一个数据块，窗口已满时先等待确认
+    private void sendBlock(byte[] data, int off, int len) throws IOException {
+        if (sentBlocks - ackedBlocks >= windowSize) {
+            channel.flush();
+            while (sentBlocks - ackedBlocks >= windowSize) {
+                handleReply(nextReply());
+            }
+        }
+        writeBlock(sentBlocks, data, off, len);
+        sentBlocks++;
+    }
+
+    // 按协商的方式写出一块：需要时先压缩，块校验模式下以CHUNK帧发送
+    private void writeBlock(long index, byte[] data, int off, int len) throws IOException {
+        if (compressor != null) {
+            len = compressor.compress(data, off, len);
+            data = compressor.getBuffer();
+            off = 0;
+            compressedBytes += len;
+        }
+        if (chunkMode) {
+            channel.sendChunk(index, data, off, len);
+        } else {
+            channel.sendData(data, off, len);
+        }
+    }
+
+    // 设置了压缩级别、服务端支持且抽样表明文件可压缩时，为接下来的一次上传协商压缩
+    private void negotiateCompression(File file) throws IOException {
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+        if (compressionLevel == 0 || !channel.hasFeature(MessageChannel.FEATURE_COMPRESS)
+                || !BlockCompressor.worthCompressing(file, compressionLevel)) {
+            return;
+        }
+        String command = MessageChannel.COMPRESS_CMD + MessageChannel.COMPRESS_DEFLATE;
+        channel.sendText(command);
+        if (command.equals(awaitReply(MessageChannel.COMPRESS_CMD))) {
+            compressor = new BlockCompressor(compressionLevel);
+            compressedBytes = 0;
+        }
+    }
+
+    // 发送结束标记，等待服务端完成保存，同时消费剩余的确认
+    private void finishTransfer() throws IOException {
+        try {
+            if (checksum != null) {
+                channel.sendText("FILE_END:" + checksumAlgorithm.name() + ":" + Long.toHexString(checksum.getValue()));
+            } else {
+                channel.sendText("FILE_END");
+            }
+            awaitReply(END_REPLY);
+        } finally {
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+        }
+    }
+
+    // 读取应答直到收到以prefix开头的应答，收到错误应答时抛出异常
+    private String awaitReply(String prefix) throws IOException {
+        String reply = handleReply(nextReply());
+        while (!reply.startsWith(prefix)) {
+            reply = handleReply(nextReply());
+        }
+        return reply;
+    }
+
+    // 服务端校验第index块失败，从文件中重新读取该块发送
+    private void resendChunk(long index) throws IOException {
+        long position = rangeStart + index * blockSize;
+        if (!chunkMode || index < 0 || position >= rangeEnd) {
+            throw new IOException("无效的重传请求: " + index);
+        }
+        byte[] data = new byte[(int) Math.min(blockSize, rangeEnd - position)];
+        try (RandomAccessFile raf = new RandomAccessFile(currentFile, "r")) {
+            raf.seek(position);
+            raf.readFully(data);
+        }
+        writeBlock(index, data, 0, data.length);
+        channel.flush();
+    }
+
+    // 同一客户端上同一文件（路径、大小、修改时间都相同）的多次上传使用相同的传输ID，用于断点续传；
+    // 加入用户名和主机名，其他客户端上路径、大小和修改时间碰巧相同的文件不会续传到这里的未完成数据
+    public static String transferId(File file) {
+        String key = CLIENT_KEY + "|" + file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String clientKey() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "";
+        }
+        return System.getProperty("user.name") + "@" + host;
+    }
+
+    private Message nextReply() throws IOException {
+        Message reply = replies.next();
+        if (reply == null) {
+            throw new IOException("服务端已关闭连接");
+        }
+        return reply;
+    }
+
+    private String handleReply(Message reply) throws IOException {
+        String text = reply.getText();
+        if (text == null) {
+            return "";
+        }
+        if (text.startsWith(ERROR_REPLY)) {
+            // 服务端已放弃本次上传，之后的数据块不会再确认，不能继续等待
+            throw new IOException("服务端返回错误: " + text.substring(ERROR_REPLY.length()));
+        } else if (text.startsWith(MessageChannel.RESEND_PREFIX)) {
+            resendChunk(Long.parseLong(text.substring(MessageChannel.RESEND_PREFIX.length())));
+        } else if (text.startsWith(MessageChannel.ACK_PREFIX)) {
+            ackedBlocks = Math.max(ackedBlocks, Long.parseLong(text.substring(MessageChannel.ACK_PREFIX.length())));
+        } else if (CHUNK_ACK.equals(text)) {
+            ackedBlocks++;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,123 @@
+package cn.njit.client;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// 多连接并行上传：把文件分成若干区间，每个区间通过单独的连接同时上传，服务端按偏移写回同一个文件
+public class ParallelUploader {
+    // 小于该大小的文件单连接上传即可
+    public static final long MIN_PARALLEL_SIZE = 64L * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int streams;
+    private final int windowSize;
+    // 每个区间发送时计算校验值的算法，为空时先计算整个文件的CRC32交给服务端校验
+    private final CRC32Util.Algorithm checksumAlgorithm;
+    // 各区间上传使用的压缩级别，0表示不压缩
+    private int compressionLevel = 0;
+
+    public ParallelUploader(String host, int port, int streams, int windowSize) {
+        this(host, port, streams, windowSize, null);
+    }
+
+    public ParallelUploader(String host, int port, int streams, int windowSize,
+                            CRC32Util.Algorithm checksumAlgorithm) {
+        this.host = host;
+        this.port = port;
+        this.streams = Math.max(1, Math.min(MessageChannel.MAX_PARALLEL_STREAMS, streams));
+        this.windowSize = windowSize;
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    // 上传文件，服务端已有相同内容而跳过上传时返回false
+    public boolean upload(File file) throws IOException {
+        // 服务端用该值验证重组后的完整文件：区间各自带校验值时为SHA-256内容哈希（同时用于询问服务端是否已有相同内容），
+        // 否则为整个文件的CRC32
+        String contentHash = checksumAlgorithm == null ? null : ContentHash.ofFile(file);
+        // 先用一个连接询问服务端是否已有相同内容，避免读取和发送整个大文件
+        try (MessageChannel channel = openChannel()) {
+            if (new FileSender(channel, channel::receive, windowSize).offerExisting(file, file.getName(), contentHash)) {
+                return false;
+            }
+        }
+        String checksum = contentHash != null ? contentHash : String.valueOf(CRC32Util.calculateFile(file.getPath()));
+        String transferId = UUID.randomUUID().toString();
+
+        // 区间大小按数据块对齐
+        long blockSize = MessageChannel.BINARY_BLOCK_SIZE;
+        long rangeSize = (file.length() + streams - 1) / streams;
+        rangeSize = Math.max(blockSize, (rangeSize + blockSize - 1) / blockSize * blockSize);
+        int rangeCount = (int) Math.max(1, (file.length() + rangeSize - 1) / rangeSize);
+
+        ExecutorService pool = Executors.newFixedThreadPool(rangeCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < rangeCount; i++) {
+                long offset = i * rangeSize;
+                long length = Math.min(rangeSize, file.length() - offset);
+                futures.add(pool.submit(() -> {
+                    try (MessageChannel channel = openChannel()) {
+                        FileSender sender = new FileSender(channel, channel::receive, windowSize,
+                                negotiateChecksum(channel));
+                        sender.setCompressionLevel(compressionLevel);
+                        sender.sendRange(file, transferId, rangeCount, checksum, offset, length);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("并行上传被中断", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // 为一个区间建立独立的连接，并完成与主连接相同的协商
+    private MessageChannel openChannel() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 5000);
+        MessageChannel channel = new MessageChannel(socket);
+        channel.receive(); // 欢迎消息
+        channel.negotiateBinary();
+        channel.queryFeatures();
+        FileSender.negotiateWindow(channel, windowSize);
+        return channel;
+    }
+
+    // 每个连接都需要协商校验算法，服务端不接受时该区间无法单独校验，上传失败
+    private CRC32Util.Algorithm negotiateChecksum(MessageChannel channel) throws IOException {
+        if (checksumAlgorithm == null) {
+            return null;
+        }
+        if (FileSender.negotiateChecksum(channel, checksumAlgorithm) == null) {
+            throw new IOException("服务端不支持校验算法: " + checksumAlgorithm);
+        }
+        return checksumAlgorithm;
+    }
+}
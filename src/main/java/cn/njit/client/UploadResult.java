@@ -0,0 +1,95 @@
+package cn.njit.client;
+
+import java.io.File;
+
+// 批量上传中一个文件的结果
+public class UploadResult {
+    private final File file;
+    private final boolean success;
+    private final boolean deduplicated;
+    // 与其他小文件打包在一起发送
+    private final boolean bundled;
+    // 增量上传实际发送的新数据字节数，不是增量上传时为-1
+    private final long deltaBytes;
+    // 压缩后发送的字节数，未压缩时为-1
+    private final long compressedBytes;
+    private final String checksum;
+    private final String error;
+
+    private UploadResult(File file, boolean success, boolean deduplicated, boolean bundled, long deltaBytes,
+                         long compressedBytes, String checksum, String error) {
+        this.file = file;
+        this.success = success;
+        this.deduplicated = deduplicated;
+        this.bundled = bundled;
+        this.deltaBytes = deltaBytes;
+        this.compressedBytes = compressedBytes;
+        this.checksum = checksum;
+        this.error = error;
+    }
+
+    // 按刚完成上传的FileSender记录结果
+    static UploadResult of(File file, FileSender sender) {
+        return new UploadResult(file, true, sender.isLastDeduplicated(), false, sender.getLastDeltaBytes(),
+                sender.getLastCompressedBytes(), sender.getLastChecksum(), null);
+    }
+
+    // 打包上传中的一个文件，校验值和压缩属于整个包
+    static UploadResult bundled(File file) {
+        return new UploadResult(file, true, false, true, -1, -1, null, null);
+    }
+
+    static UploadResult failed(File file, String error) {
+        return new UploadResult(file, false, false, false, -1, -1, null, error);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    public boolean isBundled() {
+        return bundled;
+    }
+
+    public long getDeltaBytes() {
+        return deltaBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        if (!success) {
+            return file.getName() + ": 失败 (" + error + ")";
+        }
+        if (deduplicated) {
+            return file.getName() + ": 服务端已有相同内容，跳过上传";
+        }
+        if (bundled) {
+            return file.getName() + ": 已打包发送";
+        }
+        if (deltaBytes >= 0) {
+            return file.getName() + ": 已增量发送 (新数据 " + deltaBytes + " / " + file.length() + " 字节)";
+        }
+        return file.getName() + ": 已发送" + (checksum == null ? "" : " (校验和: " + checksum + ")")
+                + (compressedBytes < 0 ? "" : " (压缩后 " + compressedBytes + " / " + file.length() + " 字节)");
+    }
+}
@@ -0,0 +1,142 @@
+package cn.njit.db;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 文件记录的存储。SQLiteDB保存在本地数据库文件中；MemoryMetadataStore只保存在内存中，
+ * 用于性能测试和不需要保留记录的边缘节点。服务端启动时按 -Dserver.metadataStore（sqlite或memory）选择。
+ */
+public interface FileMetadataStore {
+    // 分页查询每页的默认和最大记录数
+    int DEFAULT_PAGE_SIZE = 100;
+    int MAX_PAGE_SIZE = 1000;
+    // 上传时间的格式，与SQLite的datetime('now')一致（UTC）
+    DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // 按名称创建存储：memory为内存存储，其他为SQLite
+    static FileMetadataStore create(String type) {
+        if ("memory".equalsIgnoreCase(type)) {
+            return new MemoryMetadataStore();
+        }
+        return new SQLiteDB();
+    }
+
+    // 当前时间，格式与upload_time相同
+    static String currentTime() {
+        return LocalDateTime.now(ZoneOffset.UTC).format(TIME_FORMAT);
+    }
+
+    void connect();
+
+    // 已提交的写入全部完成后再关闭
+    void disconnect();
+
+    // 插入文件记录并等待写入完成，返回记录ID，失败时返回-1
+    long insertFile(String filename, String description, String contentHash);
+
+    // 插入文件记录，不等待写入，完成后得到记录ID（失败时为-1）；uploadTime为空时使用当前时间
+    CompletableFuture<Long> insertFileAsync(FileRecord record);
+
+    // 一次插入多条文件记录（目录上传结束时统一登记），返回插入的条数
+    int insertFiles(List<FileRecord> records);
+
+    // 查询文件名最近一次上传的内容哈希，没有记录时返回null
+    String findContentHash(String filename);
+
+    // 按条件查询一页记录，按ID升序；下一页以本页最后一条记录的ID作为afterId
+    List<FileRecord> queryFiles(FileQuery query);
+
+    // 逐条读取符合条件的所有记录（从query.afterId之后开始），不会一次读入全部记录
+    Iterator<FileRecord> iterateFiles(FileQuery query);
+
+    // 按条件统计上传的文件数、总大小和传输速度（不使用afterId和limit）
+    UploadStats queryStats(FileQuery query);
+
+    // 查询所有文件记录，记录全部读入内存，记录较多时使用queryFiles分页或iterateFiles逐条读取
+    default List<FileRecord> queryAllFiles() {
+        List<FileRecord> records = new ArrayList<>();
+        iterateFiles(new FileQuery()).forEachRemaining(records::add);
+        return records;
+    }
+
+    // 文件记录的查询条件，为null的条件不参与过滤
+    public static class FileQuery {
+        // 文件名前缀（目录上传的文件名以"目录名/"开头，可以按目录查询）
+        public String filenamePrefix;
+        public String contentHash;
+        // 上传时间范围 [uploadedFrom, uploadedTo)，格式与upload_time相同（yyyy-MM-dd HH:mm:ss，UTC）
+        public String uploadedFrom;
+        public String uploadedTo;
+        // 只返回ID大于该值的记录
+        public long afterId;
+        public int limit = DEFAULT_PAGE_SIZE;
+
+        public FileQuery copy() {
+            FileQuery copy = new FileQuery();
+            copy.filenamePrefix = filenamePrefix;
+            copy.contentHash = contentHash;
+            copy.uploadedFrom = uploadedFrom;
+            copy.uploadedTo = uploadedTo;
+            copy.afterId = afterId;
+            copy.limit = limit;
+            return copy;
+        }
+    }
+
+    // 上传统计，没有记录大小或速度的旧记录不计入对应的值
+    public static class UploadStats {
+        public long fileCount;
+        public long totalBytes;
+        // 有传输耗时记录的上传数
+        public long transferCount;
+        public long totalDurationMillis;
+        public long averageBytesPerSecond;
+        public long peakBytesPerSecond;
+    }
+
+    // 文件记录类
+    public static class FileRecord {
+        public long id;
+        public String filename;
+        public String uploadTime;
+        public String description;
+        public String contentHash;
+        // 以下为版本3增加的上传信息，旧记录和未知的值为-1或null
+        public long fileSize = -1;
+        // 接收时计算的校验值，格式为 算法:十六进制值
+        public String checksum;
+        // 内容在服务端存储中的位置
+        public String storagePath;
+        public String clientAddress;
+        // 本次传输的耗时和平均速度，去重跳过上传或打包上传中的单个文件没有
+        public long durationMillis = -1;
+        public long bytesPerSecond = -1;
+
+        public FileRecord copy() {
+            FileRecord copy = new FileRecord();
+            copy.id = id;
+            copy.filename = filename;
+            copy.uploadTime = uploadTime;
+            copy.description = description;
+            copy.contentHash = contentHash;
+            copy.fileSize = fileSize;
+            copy.checksum = checksum;
+            copy.storagePath = storagePath;
+            copy.clientAddress = clientAddress;
+            copy.durationMillis = durationMillis;
+            copy.bytesPerSecond = bytesPerSecond;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "ID: " + id + ", 文件名: " + filename + ", 时间: " + uploadTime;
+        }
+    }
+}
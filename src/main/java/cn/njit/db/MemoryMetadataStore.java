@@ -0,0 +1,133 @@
+package cn.njit.db;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 只保存在内存中的文件记录，服务端停止后不保留。记录按ID保存在跳表中（键集分页直接取tailMap），
+ * 另按文件名保存最近一条记录的ID供增量上传查询；插入和查询都不加锁，也没有JDBC和磁盘写入。
+ */
+public class MemoryMetadataStore implements FileMetadataStore {
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentNavigableMap<Long, FileRecord> records = new ConcurrentSkipListMap<>();
+    // 文件名对应的最近一条带内容哈希的记录ID
+    private final Map<String, Long> latestByName = new ConcurrentHashMap<>();
+
+    @Override
+    public void connect() {
+        System.out.println("使用内存元数据存储，服务端停止后文件记录不保留");
+    }
+
+    @Override
+    public void disconnect() {
+        // 没有需要关闭的资源
+    }
+
+    @Override
+    public long insertFile(String filename, String description, String contentHash) {
+        FileRecord record = new FileRecord();
+        record.filename = filename;
+        record.description = description;
+        record.contentHash = contentHash;
+        return insert(record);
+    }
+
+    @Override
+    public CompletableFuture<Long> insertFileAsync(FileRecord record) {
+        return CompletableFuture.completedFuture(insert(record));
+    }
+
+    @Override
+    public int insertFiles(List<FileRecord> batch) {
+        for (FileRecord record : batch) {
+            insert(record);
+        }
+        return batch.size();
+    }
+
+    // 保存记录的副本，调用方之后修改传入的对象不影响已保存的记录
+    private long insert(FileRecord record) {
+        FileRecord stored = record.copy();
+        stored.id = nextId.incrementAndGet();
+        if (stored.uploadTime == null) {
+            stored.uploadTime = FileMetadataStore.currentTime();
+        }
+        records.put(stored.id, stored);
+        if (stored.contentHash != null) {
+            latestByName.merge(stored.filename, stored.id, Math::max);
+        }
+        return stored.id;
+    }
+
+    @Override
+    public String findContentHash(String filename) {
+        Long id = latestByName.get(filename);
+        FileRecord record = id == null ? null : records.get(id);
+        return record == null ? null : record.contentHash;
+    }
+
+    @Override
+    public List<FileRecord> queryFiles(FileQuery query) {
+        return matching(query).limit(Math.max(1, Math.min(query.limit, MAX_PAGE_SIZE))).collect(Collectors.toList());
+    }
+
+    // 跳表的迭代器是弱一致的，读取期间插入的记录可能被读到，不会抛出并发修改异常
+    @Override
+    public Iterator<FileRecord> iterateFiles(FileQuery query) {
+        return matching(query).iterator();
+    }
+
+    @Override
+    public UploadStats queryStats(FileQuery query) {
+        FileQuery all = query.copy();
+        all.afterId = 0;
+        UploadStats stats = new UploadStats();
+        long speedCount = 0;
+        long speedTotal = 0;
+        for (Iterator<FileRecord> it = matching(all).iterator(); it.hasNext(); ) {
+            FileRecord record = it.next();
+            stats.fileCount++;
+            if (record.fileSize >= 0) {
+                stats.totalBytes += record.fileSize;
+            }
+            if (record.durationMillis >= 0) {
+                stats.transferCount++;
+                stats.totalDurationMillis += record.durationMillis;
+            }
+            if (record.bytesPerSecond >= 0) {
+                speedCount++;
+                speedTotal += record.bytesPerSecond;
+                stats.peakBytesPerSecond = Math.max(stats.peakBytesPerSecond, record.bytesPerSecond);
+            }
+        }
+        stats.averageBytesPerSecond = speedCount == 0 ? 0 : speedTotal / speedCount;
+        return stats;
+    }
+
+    // ID大于afterId且符合条件的记录，按ID升序
+    private Stream<FileRecord> matching(FileQuery query) {
+        return records.tailMap(query.afterId, false).values().stream().filter(record -> matches(query, record));
+    }
+
+    private static boolean matches(FileQuery query, FileRecord record) {
+        if (query.filenamePrefix != null
+                && (record.filename == null || !record.filename.startsWith(query.filenamePrefix))) {
+            return false;
+        }
+        if (query.contentHash != null && !query.contentHash.equals(record.contentHash)) {
+            return false;
+        }
+        if (query.uploadedFrom != null && record.uploadTime.compareTo(query.uploadedFrom) < 0) {
+            return false;
+        }
+        return query.uploadedTo == null || record.uploadTime.compareTo(query.uploadedTo) < 0;
+    }
+}
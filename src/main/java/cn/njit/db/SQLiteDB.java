@@ -2,25 +2,119 @@ package cn.njit.db;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
-public class SQLiteDB {
+/**
+ * 文件记录数据库。写入全部交给一个写线程：各处理线程的插入请求排队，写线程每次取出队列中的所有请求，
+ * 在一个事务中用复用的预编译语句写入（组提交），多个线程同时上传时只需一次提交。
+ * 数据库使用WAL模式，查询使用单独的只读连接，不会被写入阻塞。
+ */
+public class SQLiteDB implements FileMetadataStore {
     private Connection connection;
+    // 查询使用的连接，WAL模式下读取不等待写事务
+    private Connection readConnection;
     private static final String DB_PATH = "data.db";
+    // 打开连接时设置的参数：WAL模式下synchronous=NORMAL只在检查点时同步，掉电最多丢失最近提交的事务，不会损坏数据库
+    private static final String[] PRAGMAS = {
+            "PRAGMA journal_mode = WAL",
+            "PRAGMA synchronous = NORMAL",
+            "PRAGMA mmap_size = 268435456",
+            "PRAGMA temp_store = MEMORY",
+            "PRAGMA busy_timeout = 5000"
+    };
+    private static final String INSERT_SQL = "INSERT INTO files (filename, upload_time, description, content_hash,"
+            + " file_size, checksum, storage_path, client_address, duration_ms, bytes_per_second)"
+            + " VALUES (?, COALESCE(?, datetime('now')), ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String RECORD_COLUMNS = "id, filename, upload_time, description, content_hash,"
+            + " file_size, checksum, storage_path, client_address, duration_ms, bytes_per_second";
+    // 文件名前缀查询的上界：前缀加上最大的字符，使查询可以使用文件名索引的范围扫描
+    private static final String PREFIX_UPPER_BOUND = new String(Character.toChars(Character.MAX_CODE_POINT));
+    // 一个事务最多包含的写入请求数
+    private static final int MAX_GROUP_SIZE = 512;
 
+    // 数据库结构升级脚本，MIGRATIONS[i]把版本i升级到i+1，当前版本记录在PRAGMA user_version中。
+    // 只能在末尾追加新的升级，不能修改已发布的脚本
+    private static final String[][] MIGRATIONS = {
+            // 1: 按内容去重存储，记录文件名对应的内容哈希
+            {
+                    "ALTER TABLE files ADD COLUMN content_hash TEXT",
+                    "CREATE INDEX IF NOT EXISTS idx_files_filename ON files(filename)",
+                    "CREATE INDEX IF NOT EXISTS idx_files_content_hash ON files(content_hash)"
+            },
+            // 2: 按上传时间范围查询
+            {
+                    "CREATE INDEX IF NOT EXISTS idx_files_upload_time ON files(upload_time)"
+            },
+            // 3: 上传时记录文件大小、校验值、存储位置、客户端地址、传输耗时和速度，容量和吞吐量统计不必扫描上传目录
+            {
+                    "ALTER TABLE files ADD COLUMN file_size INTEGER",
+                    "ALTER TABLE files ADD COLUMN checksum TEXT",
+                    "ALTER TABLE files ADD COLUMN storage_path TEXT",
+                    "ALTER TABLE files ADD COLUMN client_address TEXT",
+                    "ALTER TABLE files ADD COLUMN duration_ms INTEGER",
+                    "ALTER TABLE files ADD COLUMN bytes_per_second INTEGER"
+            }
+    };
+
+    // 等待写线程处理的插入请求
+    private final BlockingQueue<WriteRequest> writeQueue = new LinkedBlockingQueue<>();
+    // 通知写线程处理完队列中的请求后退出
+    private static final WriteRequest STOP = new WriteRequest(null, false);
+    private volatile Thread writer;
+    // 写线程复用的插入语句
+    private PreparedStatement insertStatement;
+
+    @Override
     public void connect() {
         try {
             Class.forName("org.sqlite.JDBC");
             connection = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            applyPragmas(connection);
             System.out.println("数据库连接成功");
             createTables();
+            migrate();
+            readConnection = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            applyPragmas(readConnection);
+            insertStatement = connection.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS);
+            writer = new Thread(this::writeLoop, "db-writer");
+            writer.setDaemon(true);
+            writer.start();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // 写线程处理完已提交的写入后再关闭连接
+    @Override
     public void disconnect() {
+        Thread stopping;
+        synchronized (writeQueue) {
+            // 之后提交的写入直接失败，STOP一定是队列中的最后一个请求
+            stopping = writer;
+            writer = null;
+            writeQueue.offer(STOP);
+        }
         try {
+            if (stopping != null) {
+                stopping.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (insertStatement != null) {
+                insertStatement.close();
+            }
+            if (readConnection != null && !readConnection.isClosed()) {
+                readConnection.close();
+            }
             if (connection != null && !connection.isClosed()) {
                 connection.close();
             }
@@ -29,6 +123,14 @@ public class SQLiteDB {
         }
     }
 
+    private static void applyPragmas(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            for (String pragma : PRAGMAS) {
+                statement.execute(pragma);
+            }
+        }
+    }
+
     // 创建表
     private void createTables() {
         try (Statement statement = connection.createStatement()) {
@@ -44,36 +146,219 @@ public class SQLiteDB {
         }
     }
 
+    // 依次执行尚未执行的升级脚本，每个版本在一个事务中完成
+    private void migrate() throws SQLException {
+        int version;
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        for (; version < MIGRATIONS.length; version++) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : MIGRATIONS[version]) {
+                    statement.executeUpdate(sql);
+                }
+                statement.executeUpdate("PRAGMA user_version = " + (version + 1));
+                connection.commit();
+                System.out.println("数据库已升级到版本 " + (version + 1));
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
     // 插入文件记录
     public long insertFile(String filename, String description) {
-        long id = -1;
-        try (PreparedStatement pstmt = connection.prepareStatement(
-                "INSERT INTO files (filename, upload_time, description) VALUES (?, datetime('now'), ?)")) {
+        return insertFile(filename, description, null);
+    }
+
+    @Override
+    public long insertFile(String filename, String description, String contentHash) {
+        return await(insertFileAsync(filename, description, contentHash));
+    }
+
+    public CompletableFuture<Long> insertFileAsync(String filename, String description, String contentHash) {
+        FileRecord record = new FileRecord();
+        record.filename = filename;
+        record.description = description;
+        record.contentHash = contentHash;
+        return insertFileAsync(record);
+    }
+
+    // 插入文件记录，不等待写入：写线程与其他线程的插入一起在一个事务中提交，完成后得到记录ID（失败时为-1）
+    @Override
+    public CompletableFuture<Long> insertFileAsync(FileRecord record) {
+        return submit(new WriteRequest(Collections.singletonList(record), true));
+    }
+
+    // 在一个事务中插入多条文件记录（目录上传结束时统一登记），uploadTime为空时使用当前时间，返回插入的条数
+    @Override
+    public int insertFiles(List<FileRecord> records) {
+        return (int) Math.max(0, await(submit(new WriteRequest(records, false))));
+    }
+
+    private CompletableFuture<Long> submit(WriteRequest request) {
+        synchronized (writeQueue) {
+            if (writer == null) {
+                request.result.complete(-1L);
+            } else {
+                writeQueue.offer(request);
+            }
+        }
+        return request.result;
+    }
+
+    private static long await(CompletableFuture<Long> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            return -1;
+        }
+    }
+
+    // 写线程：每次取出队列中已有的请求（最多MAX_GROUP_SIZE个），在一个事务中写入
+    private void writeLoop() {
+        List<WriteRequest> group = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                group.add(writeQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            writeQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+            stopping = group.remove(STOP);
+            if (!group.isEmpty()) {
+                writeGroup(group);
+            }
+            group.clear();
+        }
+    }
+
+    private void writeGroup(List<WriteRequest> group) {
+        try {
+            connection.setAutoCommit(false);
+            long[] results = new long[group.size()];
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    results[i] = execute(group.get(i));
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                insertStatement.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).result.complete(results[i]);
+            }
+        } catch (SQLException e) {
+            if (group.size() == 1) {
+                e.printStackTrace();
+                group.get(0).result.complete(-1L);
+                return;
+            }
+            // 整组回滚后逐个重新写入，出错的请求不影响同组的其他请求
+            for (WriteRequest request : group) {
+                writeGroup(Collections.singletonList(request));
+            }
+        }
+    }
+
+    // 单条记录返回记录ID，多条记录用批处理写入，返回插入的条数
+    private long execute(WriteRequest request) throws SQLException {
+        for (FileRecord record : request.records) {
+            insertStatement.setString(1, record.filename);
+            insertStatement.setString(2, record.uploadTime);
+            insertStatement.setString(3, record.description);
+            insertStatement.setString(4, record.contentHash);
+            setOptionalLong(insertStatement, 5, record.fileSize);
+            insertStatement.setString(6, record.checksum);
+            insertStatement.setString(7, record.storagePath);
+            insertStatement.setString(8, record.clientAddress);
+            setOptionalLong(insertStatement, 9, record.durationMillis);
+            setOptionalLong(insertStatement, 10, record.bytesPerSecond);
+            if (request.single) {
+                insertStatement.executeUpdate();
+                try (ResultSet generatedKeys = insertStatement.getGeneratedKeys()) {
+                    return generatedKeys.next() ? generatedKeys.getLong(1) : -1;
+                }
+            }
+            insertStatement.addBatch();
+        }
+        insertStatement.executeBatch();
+        return request.records.size();
+    }
+
+    @Override
+    public synchronized String findContentHash(String filename) {
+        try (PreparedStatement pstmt = readConnection.prepareStatement(
+                "SELECT content_hash FROM files WHERE filename = ? AND content_hash IS NOT NULL ORDER BY id DESC LIMIT 1")) {
             pstmt.setString(1, filename);
-            pstmt.setString(2, description);
-            pstmt.executeUpdate();
-            ResultSet generatedKeys = pstmt.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                id = generatedKeys.getLong(1);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    // 未知的值（-1）写为NULL
+    private static void setOptionalLong(PreparedStatement pstmt, int index, long value) throws SQLException {
+        if (value < 0) {
+            pstmt.setNull(index, Types.INTEGER);
+        } else {
+            pstmt.setLong(index, value);
         }
-        return id;
     }
 
-    // 查询所有文件记录
-    public List<FileRecord> queryAllFiles() {
+    private static long getOptionalLong(ResultSet rs, String column) throws SQLException {
+        long value = rs.getLong(column);
+        return rs.wasNull() ? -1 : value;
+    }
+
+    // 按条件查询一页记录，按ID升序；下一页以本页最后一条记录的ID作为afterId（键集分页，翻页不会越来越慢）
+    @Override
+    public synchronized List<FileRecord> queryFiles(FileQuery query) {
+        StringBuilder sql = new StringBuilder("SELECT " + RECORD_COLUMNS + " FROM files WHERE id > ?");
+        List<String> params = new ArrayList<>();
+        appendConditions(query, sql, params);
+        sql.append(" ORDER BY id LIMIT ?");
+
         List<FileRecord> records = new ArrayList<>();
-        try (Statement statement = connection.createStatement();
-             ResultSet rs = statement.executeQuery("SELECT * FROM files")) {
-            while (rs.next()) {
-                FileRecord record = new FileRecord();
-                record.id = rs.getLong("id");
-                record.filename = rs.getString("filename");
-                record.uploadTime = rs.getString("upload_time");
-                record.description = rs.getString("description");
-                records.add(record);
+        try (PreparedStatement pstmt = readConnection.prepareStatement(sql.toString())) {
+            pstmt.setLong(1, query.afterId);
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setString(i + 2, params.get(i));
+            }
+            pstmt.setInt(params.size() + 2, Math.max(1, Math.min(query.limit, MAX_PAGE_SIZE)));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileRecord record = new FileRecord();
+                    record.id = rs.getLong("id");
+                    record.filename = rs.getString("filename");
+                    record.uploadTime = rs.getString("upload_time");
+                    record.description = rs.getString("description");
+                    record.contentHash = rs.getString("content_hash");
+                    record.fileSize = getOptionalLong(rs, "file_size");
+                    record.checksum = rs.getString("checksum");
+                    record.storagePath = rs.getString("storage_path");
+                    record.clientAddress = rs.getString("client_address");
+                    record.durationMillis = getOptionalLong(rs, "duration_ms");
+                    record.bytesPerSecond = getOptionalLong(rs, "bytes_per_second");
+                    records.add(record);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -81,16 +366,96 @@ public class SQLiteDB {
         return records;
     }
 
-    // 文件记录类
-    public static class FileRecord {
-        public long id;
-        public String filename;
-        public String uploadTime;
-        public String description;
+    // 按条件统计上传的文件数、总大小和传输速度，只读取记录，不扫描上传目录（不使用afterId和limit）
+    @Override
+    public synchronized UploadStats queryStats(FileQuery query) {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*), SUM(file_size), COUNT(duration_ms), SUM(duration_ms),"
+                + " AVG(bytes_per_second), MAX(bytes_per_second) FROM files WHERE 1 = 1");
+        List<String> params = new ArrayList<>();
+        appendConditions(query, sql, params);
+        UploadStats stats = new UploadStats();
+        try (PreparedStatement pstmt = readConnection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setString(i + 1, params.get(i));
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    stats.fileCount = rs.getLong(1);
+                    stats.totalBytes = rs.getLong(2);
+                    stats.transferCount = rs.getLong(3);
+                    stats.totalDurationMillis = rs.getLong(4);
+                    stats.averageBytesPerSecond = rs.getLong(5);
+                    stats.peakBytesPerSecond = rs.getLong(6);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return stats;
+    }
+
+    private static void appendConditions(FileQuery query, StringBuilder sql, List<String> params) {
+        if (query.filenamePrefix != null) {
+            sql.append(" AND filename >= ? AND filename < ?");
+            params.add(query.filenamePrefix);
+            params.add(query.filenamePrefix + PREFIX_UPPER_BOUND);
+        }
+        if (query.contentHash != null) {
+            sql.append(" AND content_hash = ?");
+            params.add(query.contentHash);
+        }
+        if (query.uploadedFrom != null) {
+            sql.append(" AND upload_time >= ?");
+            params.add(query.uploadedFrom);
+        }
+        if (query.uploadedTo != null) {
+            sql.append(" AND upload_time < ?");
+            params.add(query.uploadedTo);
+        }
+    }
+
+    // 逐条读取符合条件的所有记录（从query.afterId之后开始），内部按页查询，内存中最多保留一页，
+    // 也不会在读取期间一直占用数据库连接
+    @Override
+    public Iterator<FileRecord> iterateFiles(FileQuery query) {
+        FileQuery page = query.copy();
+        page.limit = MAX_PAGE_SIZE;
+        return new Iterator<FileRecord>() {
+            private Iterator<FileRecord> current = Collections.emptyIterator();
+            private boolean exhausted = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!current.hasNext() && !exhausted) {
+                    List<FileRecord> records = queryFiles(page);
+                    exhausted = records.size() < page.limit;
+                    if (!records.isEmpty()) {
+                        page.afterId = records.get(records.size() - 1).id;
+                    }
+                    current = records.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public FileRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    // 写线程处理的一个插入请求，single为true时结果为记录ID，否则为插入的条数
+    private static class WriteRequest {
+        private final List<FileRecord> records;
+        private final boolean single;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
 
-        @Override
-        public String toString() {
-            return "ID: " + id + ", 文件名: " + filename + ", 时间: " + uploadTime;
+        private WriteRequest(List<FileRecord> records, boolean single) {
+            this.records = records;
+            this.single = single;
         }
     }
 
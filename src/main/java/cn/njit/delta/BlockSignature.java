@@ -0,0 +1,133 @@
+package cn.njit.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * 旧文件的块签名：按固定大小分块，每块一个弱校验（RollingChecksum）和一个强校验（MD5的前8字节）。
+ * 文本格式为 块大小:文件长度:每块8位十六进制弱校验+16位十六进制强校验，依次拼接。
+ * 强校验只用于确认弱校验命中的块，重组后的文件另有整体校验值，因此截断的MD5足够。
+ */
+public class BlockSignature {
+    public static final int MIN_BLOCK_SIZE = 2048;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+    // 块数上限，限制签名文本的长度
+    private static final int MAX_BLOCKS = 64 * 1024;
+    private static final int ENTRY_LENGTH = 24;
+
+    private final int blockSize;
+    private final long length;
+    private final int[] weak;
+    private final long[] strong;
+
+    private BlockSignature(int blockSize, long length, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    // 块大小取文件长度的平方根（按1KB对齐），使签名大小与未命中时多发送的数据量大致平衡
+    public static int blockSizeFor(long length) {
+        long size = (long) Math.sqrt((double) length);
+        size = Math.max(size, (length + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        size = (size + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    public static BlockSignature of(Path file) throws IOException {
+        return of(file, blockSizeFor(Files.size(file)));
+    }
+
+    public static BlockSignature of(Path file, int blockSize) throws IOException {
+        long length = Files.size(file);
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        byte[] buffer = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int i = 0; i < count; i++) {
+                int len = in.readNBytes(buffer, 0, buffer.length);
+                weak[i] = RollingChecksum.of(buffer, 0, len);
+                strong[i] = strongHash(buffer, 0, len);
+            }
+        }
+        return new BlockSignature(blockSize, length, weak, strong);
+    }
+
+    public static BlockSignature parse(String text) throws IOException {
+        String[] parts = text.split(":", 3);
+        try {
+            int blockSize = Integer.parseInt(parts[0]);
+            long length = Long.parseLong(parts[1]);
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || length < 0) {
+                throw new IOException("无效的块签名");
+            }
+            int count = (int) ((length + blockSize - 1) / blockSize);
+            if (parts[2].length() != (long) count * ENTRY_LENGTH) {
+                throw new IOException("块签名长度与文件长度不符");
+            }
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                int start = i * ENTRY_LENGTH;
+                weak[i] = Integer.parseUnsignedInt(parts[2], start, start + 8, 16);
+                strong[i] = Long.parseUnsignedLong(parts[2], start + 8, start + ENTRY_LENGTH, 16);
+            }
+            return new BlockSignature(blockSize, length, weak, strong);
+        } catch (RuntimeException e) {
+            throw new IOException("无效的块签名: " + e.getMessage(), e);
+        }
+    }
+
+    public String format() {
+        StringBuilder text = new StringBuilder(32 + weak.length * ENTRY_LENGTH);
+        text.append(blockSize).append(':').append(length).append(':');
+        HexFormat hex = HexFormat.of();
+        for (int i = 0; i < weak.length; i++) {
+            text.append(hex.toHexDigits(weak[i])).append(hex.toHexDigits(strong[i]));
+        }
+        return text.toString();
+    }
+
+    public static long strongHash(byte[] data, int off, int len) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, off, len);
+            return ByteBuffer.wrap(md5.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5不可用", e);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    // 第index块的长度，只有最后一块可能不满
+    public int getBlockLength(int index) {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+
+    public int getWeak(int index) {
+        return weak[index];
+    }
+
+    public long getStrong(int index) {
+        return strong[index];
+    }
+}
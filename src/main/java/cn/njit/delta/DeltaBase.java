@@ -0,0 +1,55 @@
+package cn.njit.delta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 重组新文件时作为复制来源的旧文件，按复制指令读出连续的块
+public class DeltaBase implements Closeable {
+    // 复制出的数据写到哪里：服务端写入接收中的上传，客户端写入下载的升级文件
+    public interface Target {
+        void write(byte[] data, int off, int len) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final long length;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    public DeltaBase(Path file, int blockSize) throws IOException {
+        if (blockSize < BlockSignature.MIN_BLOCK_SIZE || blockSize > BlockSignature.MAX_BLOCK_SIZE) {
+            throw new IOException("无效的块大小: " + blockSize);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.blockSize = blockSize;
+        this.length = channel.size();
+    }
+
+    // 复制从第index块开始的count块
+    public void copyTo(long index, long count, Target target) throws IOException {
+        long blocks = (length + blockSize - 1) / blockSize;
+        if (index < 0 || count <= 0 || index >= blocks || count > blocks - index) {
+            throw new IOException("无效的复制指令: " + index + "+" + count);
+        }
+        long position = index * blockSize;
+        long end = Math.min(length, (index + count) * blockSize);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("旧文件已被修改");
+            }
+            target.write(buffer.array(), 0, len);
+            position += len;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
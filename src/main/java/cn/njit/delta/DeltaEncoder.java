@@ -0,0 +1,151 @@
+package cn.njit.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按旧文件的块签名编码新文件（rsync算法）：窗口在新文件上逐字节滑动，弱校验命中且强校验一致时
+ * 输出"复制旧文件第n块"，其余字节作为新数据输出。连续的块合并为一条复制指令。
+ */
+public class DeltaEncoder {
+    // 编码结果的接收方：新数据原样发送，复制指令只发送块序号和块数
+    public interface Sink {
+        void literal(byte[] data, int off, int len) throws IOException;
+
+        void copy(long index, long count) throws IOException;
+    }
+
+    private final BlockSignature signature;
+    private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+    private long pendingIndex;
+    private long pendingCount;
+    private long literalBytes;
+    private long copiedBytes;
+
+    public DeltaEncoder(BlockSignature signature) {
+        this.signature = signature;
+        for (int i = 0; i < signature.getBlockCount(); i++) {
+            blocksByWeak.computeIfAbsent(signature.getWeak(i), k -> new ArrayList<>(1)).add(i);
+        }
+    }
+
+    public void encode(InputStream in, Sink sink) throws IOException {
+        int blockSize = signature.getBlockSize();
+        byte[] buffer = new byte[Math.max(blockSize * 16, 256 * 1024)];
+        RollingChecksum rolling = new RollingChecksum();
+        int start = 0;
+        int end = 0;
+        int literalStart = 0;
+        boolean eof = false;
+        boolean valid = false;
+
+        while (true) {
+            // 窗口后面至少还要有一个字节才能滑动，不够时把未处理的数据移到缓冲区开头再读取
+            if (end - start <= blockSize && !eof) {
+                emitLiteral(sink, buffer, literalStart, start);
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                literalStart = 0;
+                int len = in.readNBytes(buffer, end, buffer.length - end);
+                eof = end + len < buffer.length;
+                end += len;
+                continue;
+            }
+            int len = Math.min(blockSize, end - start);
+            if (len == 0) {
+                break;
+            }
+            if (!valid) {
+                rolling.reset(buffer, start, len);
+                valid = true;
+            }
+            int match = find(rolling.getValue(), buffer, start, len);
+            if (match >= 0) {
+                emitLiteral(sink, buffer, literalStart, start);
+                emitCopy(sink, match);
+                copiedBytes += len;
+                start += len;
+                literalStart = start;
+                valid = false;
+            } else if (end - start > blockSize) {
+                rolling.roll(buffer[start], buffer[start + blockSize]);
+                start++;
+            } else {
+                // 已到文件末尾，剩余不足一个窗口的数据没有匹配的块
+                start = end;
+                break;
+            }
+        }
+        emitLiteral(sink, buffer, literalStart, end);
+        flushCopy(sink);
+    }
+
+    // 新数据的字节数，即实际需要传输的文件内容
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    // 从旧文件复制的字节数
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    // 查找与窗口内容相同的块，优先选择紧接上一个复制块的块，以便合并为一条指令
+    private int find(int weak, byte[] data, int off, int len) {
+        List<Integer> candidates = blocksByWeak.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        long strong = 0;
+        boolean hashed = false;
+        int found = -1;
+        for (int index : candidates) {
+            if (signature.getBlockLength(index) != len) {
+                continue;
+            }
+            if (!hashed) {
+                strong = BlockSignature.strongHash(data, off, len);
+                hashed = true;
+            }
+            if (signature.getStrong(index) == strong) {
+                if (pendingCount > 0 && index == pendingIndex + pendingCount) {
+                    return index;
+                }
+                if (found < 0) {
+                    found = index;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void emitLiteral(Sink sink, byte[] data, int from, int to) throws IOException {
+        if (to > from) {
+            flushCopy(sink);
+            sink.literal(data, from, to - from);
+            literalBytes += to - from;
+        }
+    }
+
+    private void emitCopy(Sink sink, int index) throws IOException {
+        if (pendingCount > 0 && index == pendingIndex + pendingCount) {
+            pendingCount++;
+            return;
+        }
+        flushCopy(sink);
+        pendingIndex = index;
+        pendingCount = 1;
+    }
+
+    private void flushCopy(Sink sink) throws IOException {
+        if (pendingCount > 0) {
+            sink.copy(pendingIndex, pendingCount);
+            pendingCount = 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package cn.njit.delta;
+
+// rsync使用的弱校验：窗口向后移动一个字节时可以O(1)更新，用于在新文件的任意位置快速查找与旧文件相同的块
+public class RollingChecksum {
+    private int a;
+    private int b;
+    private int length;
+
+    public static int of(byte[] data, int off, int len) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, off, len);
+        return checksum.getValue();
+    }
+
+    // 以data[off, off+len)为窗口重新计算
+    public void reset(byte[] data, int off, int len) {
+        a = 0;
+        b = 0;
+        length = len;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+    }
+
+    // 窗口后移一个字节：移出out，移入in
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a += (in & 0xff) - x;
+        b += a - length * x;
+    }
+
+    public int getValue() {
+        return (b << 16) | (a & 0xffff);
+    }
+}
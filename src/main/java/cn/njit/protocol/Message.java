@@ -0,0 +1,105 @@
+package cn.njit.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+// 协议消息：文本命令或文件数据
+public class Message {
+    // 帧类型
+    public static final byte TEXT = 1;
+    public static final byte DATA = 2;
+    // 文件流：内容为8字节的文件长度，文件的原始字节紧跟在帧之后，由MessageChannel.readStream读取
+    public static final byte STREAM = 3;
+    // 带校验的文件块：块序号(8字节) + CRC32C(4字节) + 数据，CRC32C覆盖块序号和数据，接收方校验失败时只要求重传该块
+    public static final byte CHUNK = 4;
+    public static final int CHUNK_HEADER_SIZE = 12;
+    // 多路复用帧：流ID(4字节) + 内层帧类型(1字节) + 内层帧内容，同一连接上的多个上传和消息各用一个流ID
+    public static final byte MUX = 5;
+    public static final int MUX_HEADER_SIZE = 5;
+
+    private final byte type;
+    private final byte[] payload;
+    private final String text;
+    // 所属的多路复用流，0表示不属于任何流（控制流）
+    private final int streamId;
+
+    private Message(byte type, byte[] payload, String text, int streamId) {
+        this.type = type;
+        this.payload = payload;
+        this.text = text;
+        this.streamId = streamId;
+    }
+
+    public static Message text(String text) {
+        return new Message(TEXT, null, text, 0);
+    }
+
+    public static Message frame(byte type, byte[] payload) {
+        return frame(type, payload, 0);
+    }
+
+    public static Message frame(byte type, byte[] payload, int streamId) {
+        String text = type == TEXT ? new String(payload, StandardCharsets.UTF_8) : null;
+        return new Message(type, payload, text, streamId);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isText() {
+        return type == TEXT;
+    }
+
+    // 二进制模式下的原始文件数据
+    public boolean isData() {
+        return type == DATA;
+    }
+
+    public boolean isStream() {
+        return type == STREAM;
+    }
+
+    public boolean isChunk() {
+        return type == CHUNK;
+    }
+
+    public long getChunkIndex() {
+        return ByteBuffer.wrap(payload).getLong(0);
+    }
+
+    public int getChunkChecksum() {
+        return ByteBuffer.wrap(payload).getInt(8);
+    }
+
+    // 块数据在payload中从CHUNK_HEADER_SIZE开始
+    public int getChunkLength() {
+        return payload.length - CHUNK_HEADER_SIZE;
+    }
+
+    // 块序号和块数据的CRC32C是否与帧中携带的一致，块序号损坏时同样校验失败
+    public boolean isChunkValid() {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, Long.BYTES);
+        crc.update(payload, CHUNK_HEADER_SIZE, getChunkLength());
+        return (int) crc.getValue() == getChunkChecksum();
+    }
+
+    // 文件流帧之后的字节数
+    public long getStreamLength() {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,446 @@
+package cn.njit.protocol;
+
+import cn.njit.base64.Base64Util;
+import cn.njit.util.MappedFile;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * 客户端与服务端共用的消息通道，支持两种模式：
+ * 行模式（原协议）：每条消息Base64编码后按行发送，文件数据在此基础上再做一次Base64编码；
+ * 二进制模式：帧格式为 类型(1字节) + 长度(4字节) + 内容，文件数据直接以原始字节发送。
+ * 连接建立后默认为行模式，客户端发送PROTOCOL:BINARY并收到相同应答后双方切换为二进制模式。
+ * 二进制模式下可以用stream(流ID)取得多路复用流，流上发送的帧带有流ID，多个上传和消息可以在同一连接上交错进行。
+ */
+public class MessageChannel implements Closeable {
+    // 协商二进制模式的命令，服务端原样应答表示同意
+    public static final String BINARY_CMD = "PROTOCOL:BINARY";
+    // 上传确认窗口协商命令（ACK_WINDOW:块数），服务端原样应答后按累计确认ACK:已收块数回复
+    public static final String ACK_WINDOW_CMD = "ACK_WINDOW:";
+    public static final String ACK_PREFIX = "ACK:";
+    // 查询服务端支持的可选功能，应答格式为 FEATURES:功能1,功能2
+    public static final String FEATURES_CMD = "FEATURES";
+    // 断点续传：FILE_RESUME:传输ID:文件名，服务端应答RESUME_OFFSET:已接收字节数
+    public static final String FEATURE_RESUME = "resume";
+    // 并行上传：FILE_RANGE:传输ID:连接数:文件大小:校验和:区间起点:文件名，每个连接上传文件的一个区间
+    public static final String FEATURE_PARALLEL = "parallel";
+    // 一个并行上传最多使用的连接数，服务端拒绝超出的FILE_RANGE
+    public static final int MAX_PARALLEL_STREAMS = 64;
+    // 上传时边发送边计算校验值：CHECKSUM_ALGO:算法名 协商算法（服务端原样应答），结束时发送FILE_END:算法名:十六进制校验值
+    public static final String FEATURE_CHECKSUM = "checksum";
+    public static final String CHECKSUM_ALGO_CMD = "CHECKSUM_ALGO:";
+    // 块校验（仅二进制模式）：上传数据以CHUNK帧发送，服务端发现损坏的块时回复RESEND:块序号，客户端只重传该块；
+    // 下载升级文件前服务端发送CHUNK_SUMS:块大小:各块CRC32C，客户端用UPGRADE_CHUNK:块序号:文件名补取损坏的块
+    public static final String FEATURE_CHUNK_CHECKSUM = "chunkcrc";
+    public static final String RESEND_PREFIX = "RESEND:";
+    public static final String CHUNK_SUMS_PREFIX = "CHUNK_SUMS:";
+    public static final String UPGRADE_CHUNK_CMD = "UPGRADE_CHUNK:";
+    // 按内容去重：上传前发送HAVE:SHA-256哈希:文件名，服务端已有相同内容时应答HAVE:YES并直接记录，否则应答HAVE:NO
+    public static final String FEATURE_DEDUP = "dedup";
+    public static final String HAVE_CMD = "HAVE:";
+    // 增量传输：上传前发送DELTA_SIG:文件名，服务端应答DELTA_SIG:内容哈希:块签名（没有旧版本时为DELTA_SIG:），
+    // 客户端发送DELTA_START:内容哈希:块大小:文件名 后，新数据按普通数据块发送，与旧版本相同的部分发送DELTA_COPY:块序号:块数；
+    // 下载升级文件时客户端发送UPGRADE_DELTA:本地旧版本的块签名:文件名，服务端以DELTA_START:文件名开始按同样的方式发送
+    public static final String FEATURE_DELTA = "delta";
+    public static final String DELTA_SIG_CMD = "DELTA_SIG:";
+    public static final String DELTA_START_CMD = "DELTA_START:";
+    public static final String DELTA_COPY_CMD = "DELTA_COPY:";
+    public static final String UPGRADE_DELTA_CMD = "UPGRADE_DELTA:";
+    // 压缩：开始一次上传前发送COMPRESS:DEFLATE，服务端原样应答后该次上传的每个数据块都按BlockCompressor的格式压缩
+    public static final String FEATURE_COMPRESS = "compress";
+    public static final String COMPRESS_CMD = "COMPRESS:";
+    public static final String COMPRESS_DEFLATE = "DEFLATE";
+    // 多路复用（仅二进制模式）：帧包装为MUX帧并带上流ID，服务端为每个流分别保存上传状态并在同一流上应答；
+    // 流ID由客户端分配，0为原有的不带流ID的控制流，流用完后客户端发送STREAM_CLOSE释放服务端的状态
+    public static final String FEATURE_MUX = "mux";
+    public static final String STREAM_CLOSE_CMD = "STREAM_CLOSE";
+    // 批量登记（目录上传）：BATCH:批次ID 之后该流上完成的上传（包括去重跳过的文件）暂不写入数据库，不需要应答；
+    // 全部上传完成后发送BATCH_END:批次ID，服务端在一个事务中登记整个批次（可能来自多个连接）并应答BATCH_END:文件数
+    public static final String FEATURE_BATCH = "batch";
+    public static final String BATCH_CMD = "BATCH:";
+    public static final String BATCH_END_CMD = "BATCH_END:";
+    // 打包上传小文件：开始一次上传前发送BUNDLE:文件数，服务端原样应答后该次上传的内容按FileBundle的格式打包，
+    // 服务端接收完成后解包，逐个按内容保存并在一个事务中登记（流加入了批次时记入批次）
+    public static final String FEATURE_BUNDLE = "bundle";
+    public static final String BUNDLE_CMD = "BUNDLE:";
+    // 文件记录查询：LIST:起始ID:条数 列出ID大于起始ID的记录；SEARCH:起始ID:条数:条件 按条件查询，
+    // 条件为URL编码的name=文件名前缀&hash=内容哈希&from=起始时间&to=结束时间（可任选）。
+    // 每条记录应答一条RECORD:ID\t上传时间\t内容哈希\t文件名，最后应答LIST_END:下一页的起始ID（0表示没有更多）；
+    // 条数为0时返回所有符合条件的记录
+    public static final String FEATURE_LIST = "list";
+    public static final String LIST_CMD = "LIST:";
+    public static final String SEARCH_CMD = "SEARCH:";
+    public static final String RECORD_PREFIX = "RECORD:";
+    public static final String LIST_END_CMD = "LIST_END:";
+    // 上传统计：STATS:条件（格式与SEARCH相同，可以为空），应答STATS:文件数:总字节数:有耗时记录的上传数:总耗时毫秒:平均速度:峰值速度（字节/秒）
+    public static final String FEATURE_STATS = "stats";
+    public static final String STATS_CMD = "STATS:";
+    // 下载已上传的文件：DOWNLOAD:范围:文件名，范围与HTTP Range相同（起点-终点 含终点、起点- 到文件末尾、-N 最后N字节），
+    // 为空时下载整个文件。应答DOWNLOAD:起点:长度:文件大小:内容哈希，随后是该范围的数据和FILE_END
+    public static final String FEATURE_DOWNLOAD = "download";
+    public static final String DOWNLOAD_CMD = "DOWNLOAD:";
+    // 心跳：HEARTBEAT不需要应答；HEARTBEAT:序号 由服务端原样应答，客户端用来检查空闲的连接是否可用
+    public static final String HEARTBEAT_CMD = "HEARTBEAT";
+    // 行模式下每块原始数据大小，编码后正好是Base64Util.CHUNK_SIZE个字符
+    public static final int LINE_BLOCK_SIZE = Base64Util.CHUNK_SIZE / 4 * 3;
+    // 二进制模式下每块原始数据大小
+    public static final int BINARY_BLOCK_SIZE = 64 * 1024;
+    // 单帧或单行的最大长度，防止异常数据导致内存耗尽
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // 多路复用流共用所属连接的输入输出流、发送锁和协商结果
+    private final MessageChannel root;
+    private final int streamId;
+    private volatile boolean binary = false;
+    private Set<String> features = Collections.emptySet();
+    private byte[] lineBuffer = new byte[Base64Util.CHUNK_SIZE * 2];
+    // 发送锁：不使用synchronized，避免虚拟线程在阻塞写socket时占住载体线程；
+    // 使用公平锁，多个流同时发送时按等待顺序轮流写入各自的帧
+    private final ReentrantLock writeLock;
+
+    public MessageChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BINARY_BLOCK_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BINARY_BLOCK_SIZE));
+        this.root = this;
+        this.streamId = 0;
+        this.writeLock = new ReentrantLock(true);
+    }
+
+    private MessageChannel(MessageChannel root, int streamId) {
+        this.socket = root.socket;
+        this.in = root.in;
+        this.out = root.out;
+        this.root = root;
+        this.streamId = streamId;
+        this.writeLock = root.writeLock;
+    }
+
+    // 取得该连接上的一个多路复用流，流上只能发送，应答由连接的接收线程按流ID分发
+    public MessageChannel stream(int id) {
+        if (id == 0) {
+            return root;
+        }
+        if (!root.binary) {
+            throw new IllegalStateException("多路复用需要二进制模式");
+        }
+        return new MessageChannel(root, id);
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public boolean isBinary() {
+        return root.binary;
+    }
+
+    public void setBinary(boolean binary) {
+        root.binary = binary;
+    }
+
+    // 当前模式下每个数据块的原始字节数
+    public int getBlockSize() {
+        return isBinary() ? BINARY_BLOCK_SIZE : LINE_BLOCK_SIZE;
+    }
+
+    // 客户端发起二进制模式协商，旧服务端会回复未知命令，此时继续使用行模式
+    public boolean negotiateBinary() throws IOException {
+        sendText(BINARY_CMD);
+        Message reply = receive();
+        if (reply != null && BINARY_CMD.equals(reply.getText())) {
+            binary = true;
+        }
+        return binary;
+    }
+
+    // 客户端查询服务端支持的可选功能，旧服务端会回复未知命令，此时视为都不支持
+    public Set<String> queryFeatures() throws IOException {
+        sendText(FEATURES_CMD);
+        Message reply = receive();
+        String prefix = FEATURES_CMD + ":";
+        if (reply != null && reply.getText() != null && reply.getText().startsWith(prefix)) {
+            features = new HashSet<>(Arrays.asList(reply.getText().substring(prefix.length()).split(",")));
+        }
+        return features;
+    }
+
+    public boolean hasFeature(String feature) {
+        return root.features.contains(feature);
+    }
+
+    // 发送文本命令并立即刷新
+    public void sendText(String text) throws IOException {
+        writeLock.lock();
+        try {
+            writeText(text);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 发送文本消息，不立即刷新，用于连续发送多条应答（如查询结果），由后续的sendText或flush()刷新
+    public void writeText(String text) throws IOException {
+        writeLock.lock();
+        try {
+            if (isBinary()) {
+                byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+                writeFrame(Message.TEXT, payload, 0, payload.length);
+            } else {
+                writeLine(Base64Util.encode(text));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 发送一块文件数据，不立即刷新，由后续的文本命令或flush()刷新
+    public void sendData(byte[] data, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            if (isBinary()) {
+                writeFrame(Message.DATA, data, off, len);
+            } else {
+                // 与原协议一致：先编码文件内容，再作为一条消息编码
+                String chunk = Base64.getEncoder().encodeToString(
+                        off == 0 && len == data.length ? data : Arrays.copyOfRange(data, off, off + len));
+                writeLine(Base64Util.encode(chunk));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 发送一个带CRC32C校验的文件块（仅二进制模式），校验值覆盖块序号和数据，不立即刷新
+    public void sendChunk(long index, byte[] data, int off, int len) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, index));
+        crc.update(data, off, len);
+        writeLock.lock();
+        try {
+            writeHeader(Message.CHUNK, Message.CHUNK_HEADER_SIZE + len);
+            out.writeLong(index);
+            out.writeInt((int) crc.getValue());
+            out.write(data, off, len);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 按当前模式的块大小发送输入流中的全部数据，返回发送的字节数
+    public long sendStream(InputStream source) throws IOException {
+        byte[] buffer = new byte[getBlockSize()];
+        long total = 0;
+        int len;
+        while ((len = source.readNBytes(buffer, 0, buffer.length)) > 0) {
+            sendData(buffer, 0, len);
+            total += len;
+        }
+        flush();
+        return total;
+    }
+
+    // 以文件流帧发送整个文件（仅二进制模式）：
+    // 连接由SocketChannel创建时使用FileChannel.transferTo由内核直接从文件发送到socket，不经过Java堆
+    // 文件流帧之后的原始字节无法与其他流交错，多路复用流上应使用sendStream
+    public void sendFileStream(Path path) throws IOException {
+        if (streamId != 0) {
+            throw new IOException("多路复用流不支持文件流帧");
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            sendFileRange(file, 0, file.size());
+        }
+    }
+
+    // 发送文件中从position开始的length个字节：二进制模式的控制流上以文件流帧零拷贝发送，
+    // 多路复用流和行模式下按当前模式的块大小逐块发送（大文件通过内存映射读取），结束时都已刷新
+    public void sendFileRange(FileChannel file, long position, long length) throws IOException {
+        // 发送帧头之前检查，文件已被截短时不发送任何数据
+        if (position + length > file.size()) {
+            throw new EOFException("文件长度不足");
+        }
+        if (isBinary() && streamId == 0) {
+            writeLock.lock();
+            try {
+                out.writeByte(Message.STREAM);
+                out.writeInt(Long.BYTES);
+                out.writeLong(length);
+                out.flush();
+
+                SocketChannel target = socket.getChannel();
+                long end = position + length;
+                if (target != null) {
+                    while (position < end) {
+                        long sent = file.transferTo(position, end - position, target);
+                        // 发送过程中文件被截短时transferTo返回0，不能在持有发送锁时一直重试
+                        if (sent <= 0 && position >= file.size()) {
+                            throw new EOFException("文件发送不完整");
+                        }
+                        position += sent;
+                    }
+                } else {
+                    long copied = file.transferTo(position, length, Channels.newChannel(out));
+                    if (copied != length) {
+                        throw new IOException("文件发送不完整");
+                    }
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        if (MappedFile.worthMapping(length)) {
+            // 大文件通过内存映射读取
+            MappedFile.forEachBlock(file, position, length, new byte[getBlockSize()],
+                    (data, len) -> sendData(data, 0, len));
+            flush();
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(getBlockSize());
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("文件长度不足");
+                }
+            }
+            sendData(buffer.array(), 0, buffer.position());
+            position += buffer.position();
+        }
+        flush();
+    }
+
+    // 读取文件流帧之后的length个字节写入target
+    public void readStream(OutputStream target, long length) throws IOException {
+        byte[] buffer = new byte[BINARY_BLOCK_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (len == -1) {
+                throw new EOFException("文件流未接收完整");
+            }
+            target.write(buffer, 0, len);
+            remaining -= len;
+        }
+    }
+
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 读取一条消息，连接关闭时返回null
+    public Message receive() throws IOException {
+        if (streamId != 0) {
+            throw new IllegalStateException("多路复用流的消息由连接统一接收后分发");
+        }
+        if (binary) {
+            int type = in.read();
+            if (type == -1) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("帧长度异常: " + length);
+            }
+            int stream = 0;
+            if (type == Message.MUX) {
+                // 多路复用帧：读出流ID和内层帧类型后，剩余部分按内层帧读取，不再复制一次
+                if (length < Message.MUX_HEADER_SIZE) {
+                    throw new IOException("多路复用帧长度异常: " + length);
+                }
+                stream = in.readInt();
+                type = in.readUnsignedByte();
+                length -= Message.MUX_HEADER_SIZE;
+                if (stream == 0 || type == Message.MUX || type == Message.STREAM) {
+                    throw new IOException("无效的多路复用帧");
+                }
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return Message.frame((byte) type, payload, stream);
+        }
+
+        String line = readLine();
+        return line == null ? null : Message.text(Base64Util.decode(line));
+    }
+
+    private void writeFrame(byte type, byte[] payload, int off, int len) throws IOException {
+        writeHeader(type, len);
+        out.write(payload, off, len);
+    }
+
+    // 写入帧头，多路复用流上的帧外面再包一层带流ID的MUX帧
+    private void writeHeader(byte type, int length) throws IOException {
+        if (streamId != 0) {
+            out.writeByte(Message.MUX);
+            out.writeInt(Message.MUX_HEADER_SIZE + length);
+            out.writeInt(streamId);
+            out.writeByte(type);
+        } else {
+            out.writeByte(type);
+            out.writeInt(length);
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write('\n');
+    }
+
+    // 按字节读取一行（Base64内容只包含ASCII字符），不使用BufferedReader以免预读走二进制帧
+    private String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == lineBuffer.length) {
+                if (length >= MAX_FRAME_SIZE) {
+                    throw new IOException("行长度超出限制");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) {
+            return null;
+        }
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBuffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,117 @@
+package cn.njit.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端一侧的多路复用：同一连接上的每个上传或请求打开一个流，各自发送带流ID的帧并等待自己的应答。
+ * 连接只能由一个接收线程读取，接收线程把读到的消息交给dispatch，属于某个流的应答转入该流的队列。
+ */
+public class StreamMux {
+    // 等待某个流应答的超时时间
+    private static final long REPLY_TIMEOUT_SECONDS = 120;
+    // 连接断开后放入各个流的队列，唤醒正在等待应答的线程
+    private static final Message CLOSED = Message.text(null);
+
+    private final MessageChannel channel;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private int nextId = 0;
+    private boolean closed = false;
+
+    public StreamMux(MessageChannel channel) {
+        this.channel = channel;
+    }
+
+    // 打开一个新的流，流ID在连接内递增分配
+    public synchronized Stream open() throws IOException {
+        if (closed) {
+            throw new IOException("连接已断开");
+        }
+        do {
+            nextId = nextId == Integer.MAX_VALUE ? 1 : nextId + 1;
+        } while (streams.containsKey(nextId));
+        Stream stream = new Stream(nextId);
+        streams.put(nextId, stream);
+        return stream;
+    }
+
+    // 由接收线程调用：属于某个流的消息返回true，流ID为0的消息返回false，由接收线程自己处理
+    public boolean dispatch(Message message) {
+        if (message.getStreamId() == 0) {
+            return false;
+        }
+        Stream stream = streams.get(message.getStreamId());
+        if (stream != null) {
+            stream.replies.offer(message);
+        }
+        // 已关闭的流的迟到应答直接丢弃
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // 连接断开时调用，所有等待应答的流都会收到异常
+    public synchronized void close() {
+        closed = true;
+        for (Stream stream : streams.values()) {
+            stream.replies.offer(CLOSED);
+        }
+    }
+
+    public class Stream implements Closeable {
+        private final int id;
+        private final MessageChannel streamChannel;
+        private final BlockingQueue<Message> replies = new LinkedBlockingQueue<>();
+
+        private Stream(int id) {
+            this.id = id;
+            this.streamChannel = channel.stream(id);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        // 在该流上发送命令和数据的通道
+        public MessageChannel getChannel() {
+            return streamChannel;
+        }
+
+        // 等待该流的下一条应答，可以直接作为FileSender的应答来源
+        public Message receive() throws IOException {
+            try {
+                Message reply = replies.poll(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (reply == null) {
+                    throw new IOException("等待服务端确认超时");
+                }
+                if (reply == CLOSED) {
+                    replies.offer(CLOSED);
+                    throw new IOException("连接已断开");
+                }
+                return reply;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待应答被中断");
+            }
+        }
+
+        // 通知服务端释放该流的状态（未完成的上传会被丢弃，可续传的上传保留已接收的部分）
+        @Override
+        public void close() {
+            streams.remove(id);
+            try {
+                streamChannel.sendText(MessageChannel.STREAM_CLOSE_CMD);
+            } catch (IOException e) {
+                // 连接已断开，服务端会随连接一起释放
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package cn.njit.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步日志：连接线程只把日志放入有界队列，由单独的线程成批取出交给Sink输出。
+ * 队列满时丢弃新日志并计数，不阻塞文件传输；丢弃的条数在下一批日志中提示。
+ */
+public class AsyncServerLog implements ServerLog, AutoCloseable {
+    private static final int QUEUE_CAPACITY = 8192;
+    // 每批最多输出的条数
+    private static final int MAX_BATCH = 512;
+
+    // 成批输出日志
+    public interface Sink {
+        void write(List<Entry> batch);
+    }
+
+    public static class Entry {
+        private final Level level;
+        private final String message;
+
+        Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final Level threshold;
+    private final Sink sink;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public AsyncServerLog(Level threshold, Sink sink) {
+        this.threshold = threshold;
+        this.sink = sink;
+        this.writer = new Thread(this::drainLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // 系统属性 -Dserver.logLevel 指定的级别，未设置或无效时为INFO
+    public static Level defaultLevel() {
+        try {
+            return Level.valueOf(System.getProperty("server.logLevel", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    @Override
+    public void log(Level level, String message) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        if (!queue.offer(new Entry(level, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void drainLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    batch.add(new Entry(Level.ERROR, "日志队列已满，丢弃了 " + lost + " 条日志"));
+                }
+                sink.write(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // 停止接收新日志，等待队列中的日志输出完毕
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cn.njit.server;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.MappedFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+// 缓存文件的CRC32校验和及各块的CRC32C，文件大小和修改时间不变时直接返回，避免每次下载都重新读取整个文件
+public class ChecksumCache {
+    // 块校验按二进制模式的块大小划分
+    public static final int BLOCK_SIZE = MessageChannel.BINARY_BLOCK_SIZE;
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    public long get(Path path) throws IOException {
+        return entry(path).checksum;
+    }
+
+    // 各块的CRC32C，格式为 块大小:十六进制值,十六进制值,...
+    public String getChunkSums(Path path) throws IOException {
+        return entry(path).chunkSums;
+    }
+
+    private Entry entry(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        long size = Files.size(key);
+        long modified = Files.getLastModifiedTime(key).toMillis();
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size || entry.modified != modified) {
+            entry = calculate(key, size, modified);
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    // 读取一遍文件，同时计算整个文件的CRC32和每块的CRC32C；大文件通过内存映射读取，直接在映射的数据上计算
+    private static Entry calculate(Path path, long size, long modified) throws IOException {
+        CRC32 crc32 = new CRC32();
+        CRC32C blockCrc = new CRC32C();
+        StringBuilder sums = new StringBuilder().append(BLOCK_SIZE).append(':');
+        if (MappedFile.worthMapping(size)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // 窗口大小是块大小的整数倍，块不会跨越两个窗口
+                MappedFile.forEach(channel, 0, channel.size(), window -> {
+                    crc32.update(window.duplicate());
+                    while (window.hasRemaining()) {
+                        ByteBuffer block = window.slice(window.position(), Math.min(BLOCK_SIZE, window.remaining()));
+                        blockCrc.reset();
+                        blockCrc.update(block);
+                        appendSum(sums, blockCrc);
+                        window.position(window.position() + block.capacity());
+                    }
+                });
+            }
+            return new Entry(size, modified, crc32.getValue(), sums.toString());
+        }
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int len;
+            while ((len = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                crc32.update(buffer, 0, len);
+                blockCrc.reset();
+                blockCrc.update(buffer, 0, len);
+                appendSum(sums, blockCrc);
+            }
+        }
+        return new Entry(size, modified, crc32.getValue(), sums.toString());
+    }
+
+    private static void appendSum(StringBuilder sums, CRC32C blockCrc) {
+        if (sums.charAt(sums.length() - 1) != ':') {
+            sums.append(',');
+        }
+        sums.append(Integer.toHexString((int) blockCrc.getValue()));
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final long checksum;
+        final String chunkSums;
+
+        Entry(long size, long modified, long checksum, String chunkSums) {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.chunkSums = chunkSums;
+        }
+    }
+}
@@ -0,0 +1,907 @@
+package cn.njit.server;
+
+import cn.njit.db.FileMetadataStore;
+import cn.njit.delta.BlockSignature;
+import cn.njit.delta.DeltaBase;
+import cn.njit.delta.DeltaEncoder;
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.steganography.LSBSteganography;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+import cn.njit.util.FileBundle;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// 处理一个客户端连接：命令分发、文件上传接收和升级文件发送
+class ClientHandler implements Runnable {
+    private static final String VERSION_CMD = "VERSION_CHECK";
+    private static final String UPGRADE_CMD = "UPGRADE_REQUEST";
+    // 调试日志中每条消息最多输出的字符数
+    private static final int LOG_TEXT_LIMIT = 120;
+    // 每个连接同时打开的多路复用流上限
+    private static final int MAX_STREAMS = 64;
+    private static final String UPLOAD_DESCRIPTION = "上传自客户端";
+
+    private final ServerEngine engine;
+    private final ServerConfig config;
+    private final ServerLog log;
+    private final Socket clientSocket;
+    private volatile boolean clientConnected = true;
+    // 各个多路复用流的上传状态，按流ID保存，流ID为0的是不带流ID的控制流
+    private final Map<Integer, TransferStream> streams = new HashMap<>();
+    // 累计确认间隔（块数），0表示按旧协议每块确认一次
+    private int ackInterval = 0;
+    // 客户端通过CHECKSUM_ALGO协商的校验算法，上传数据在写入时按该算法计算校验值
+    private CRC32Util.Algorithm checksumAlgorithm = CRC32Util.Algorithm.CRC32;
+
+    ClientHandler(ServerEngine engine, Socket socket) {
+        this.engine = engine;
+        this.config = engine.getConfig();
+        this.log = engine.getLog();
+        this.clientSocket = socket;
+    }
+
+    @Override
+    public void run() {
+        try (MessageChannel channel = new MessageChannel(clientSocket)) {
+
+            // 增加文件传输超时时间
+            clientSocket.setSoTimeout(config.getReadTimeout());
+
+            // 发送欢迎消息
+            channel.sendText("SERVER:欢迎连接到服务器");
+            streams.put(0, new TransferStream(channel));
+
+            // 持续处理客户端消息
+            while (clientConnected && engine.isRunning()) {
+                try {
+                    Message received = channel.receive();
+                    if (received == null) {
+                        // 客户端关闭连接
+                        break;
+                    }
+
+                    TransferStream stream = streamFor(channel, received);
+                    if (stream == null) {
+                        continue;
+                    }
+                    boolean keepOpen = handleMessage(stream, received);
+                    if (received.getStreamId() != 0 && stream.isIdle()) {
+                        streams.remove(received.getStreamId());
+                    }
+                    if (!keepOpen) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    if (!clientSocket.isClosed()) {
+                        log.error("读取数据错误: " + e.getMessage());
+                    }
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            log.error("客户端连接错误: " + e.getMessage());
+        } finally {
+            engine.connectionClosed();
+            // 连接中断时丢弃各个流未完成的临时文件
+            for (TransferStream stream : streams.values()) {
+                stream.abortUpload();
+                leaveBatch(stream);
+            }
+            try {
+                clientSocket.close();
+                log.info("客户端连接关闭: " + clientSocket.getInetAddress());
+            } catch (IOException e) {
+                log.error("关闭客户端socket错误: " + e.getMessage());
+            }
+        }
+    }
+
+    // 处理一条消息并在消息所属的流上应答，返回false表示客户端要求关闭连接
+    private boolean handleMessage(TransferStream stream, Message received) throws IOException {
+        MessageChannel channel = stream.channel;
+        if (received.isChunk()) {
+            // 带校验的文件块，损坏时要求客户端只重传该块
+            if (stream.upload != null) {
+                receiveChunk(stream, received);
+            }
+            return true;
+        }
+
+        if (received.isData()) {
+            // 二进制模式下的原始文件数据
+            if (stream.upload != null) {
+                stream.upload.write(received.getPayload());
+                acknowledgeChunk(stream);
+            }
+            return true;
+        }
+
+        String decodedData = received.getText();
+        if (log.isEnabled(ServerLog.Level.DEBUG)) {
+            log.debug("接收数据：" + abbreviate(decodedData));
+        }
+
+        if (MessageChannel.BINARY_CMD.equals(decodedData)) {
+            // 客户端请求切换为二进制帧模式，先按行模式应答再切换
+            channel.sendText(MessageChannel.BINARY_CMD);
+            channel.setBinary(true);
+        } else if (decodedData.startsWith(MessageChannel.ACK_WINDOW_CMD)) {
+            // 客户端声明发送窗口，每收到半个窗口回复一次累计确认
+            int window;
+            try {
+                window = Integer.parseInt(decodedData.substring(MessageChannel.ACK_WINDOW_CMD.length()));
+            } catch (NumberFormatException e) {
+                channel.sendText("ERROR:无效的窗口大小");
+                return true;
+            }
+            if (window <= 0) {
+                channel.sendText("ERROR:无效的窗口大小");
+                return true;
+            }
+            ackInterval = Math.max(1, window / 2);
+            channel.sendText(decodedData);
+        } else if ("exit".equalsIgnoreCase(decodedData)) {
+            channel.sendText("SERVER:连接即将关闭");
+            return false;
+        } else if (decodedData.startsWith("MSG:")) {
+            String message = decodedData.substring(4);
+            log.info("文本消息: " + message);
+            // 发送回执
+            channel.sendText("SERVER:消息已接收");
+        } else if (decodedData.startsWith(MessageChannel.CHECKSUM_ALGO_CMD)) {
+            CRC32Util.Algorithm algorithm = CRC32Util.parseAlgorithm(
+                    decodedData.substring(MessageChannel.CHECKSUM_ALGO_CMD.length()));
+            if (algorithm == null) {
+                channel.sendText("ERROR:不支持的校验算法");
+            } else {
+                checksumAlgorithm = algorithm;
+                channel.sendText(MessageChannel.CHECKSUM_ALGO_CMD + algorithm.name());
+            }
+        } else if (decodedData.startsWith("CHECKSUM:")) {
+            // 旧客户端的文件校验和，在下一个文件结束时校验，不需要应答；无效时应答错误并丢弃
+            try {
+                stream.pendingChecksum = Long.parseLong(decodedData.substring(9));
+            } catch (NumberFormatException e) {
+                stream.pendingChecksum = null;
+                channel.sendText("ERROR:无效的校验和");
+            }
+        } else if (decodedData.startsWith(MessageChannel.COMPRESS_CMD)) {
+            if (MessageChannel.COMPRESS_DEFLATE.equals(decodedData.substring(MessageChannel.COMPRESS_CMD.length()))) {
+                stream.pendingCompression = true;
+                channel.sendText(decodedData);
+            } else {
+                channel.sendText("ERROR:不支持的压缩方式");
+            }
+        } else if (decodedData.startsWith(MessageChannel.BUNDLE_CMD)) {
+            // 下一次上传是多个小文件的打包，原样应答
+            stream.pendingBundle = true;
+            channel.sendText(decodedData);
+        } else if (MessageChannel.FEATURES_CMD.equals(decodedData)) {
+            channel.sendText(MessageChannel.FEATURES_CMD + ":" + ServerEngine.FEATURES);
+        } else if (decodedData.startsWith(MessageChannel.HAVE_CMD)) {
+            channel.sendText(handleHave(stream, decodedData.substring(MessageChannel.HAVE_CMD.length())));
+        } else if (decodedData.startsWith(MessageChannel.DELTA_SIG_CMD)) {
+            // 增量上传前查询该文件名已保存版本的块签名
+            channel.sendText(MessageChannel.DELTA_SIG_CMD
+                    + deltaSignature(decodedData.substring(MessageChannel.DELTA_SIG_CMD.length())));
+        } else if (decodedData.startsWith(MessageChannel.DELTA_START_CMD)) {
+            // 增量上传：DELTA_START:旧版本内容哈希:块大小:文件名
+            stream.abortUpload();
+            startDeltaUpload(decodedData.substring(MessageChannel.DELTA_START_CMD.length()).split(":", 3),
+                    stream);
+        } else if (decodedData.startsWith(MessageChannel.DELTA_COPY_CMD)) {
+            // 增量上传中与旧版本相同的部分：DELTA_COPY:块序号:块数
+            if (stream.upload != null) {
+                copyDeltaBlocks(decodedData.substring(MessageChannel.DELTA_COPY_CMD.length()).split(":"),
+                        stream);
+            }
+        } else if (decodedData.startsWith("FILE_RESUME:")) {
+            // 可续传上传：FILE_RESUME:传输ID:文件名，应答已接收的字节数
+            String[] parts = decodedData.substring(12).split(":", 2);
+            stream.abortUpload();
+            if (parts.length < 2) {
+                clearNegotiated(stream);
+                channel.sendText("ERROR:无效的续传请求");
+            } else {
+                engine.sweepPartials();
+                try {
+                    stream.upload = new UploadReceiver(config.getUploadDir(), parts[1], parts[0], uploadAlgorithm(stream));
+                    applyNegotiated(stream);
+                    channel.sendText("RESUME_OFFSET:" + stream.upload.getOffset());
+                } catch (IOException e) {
+                    clearNegotiated(stream);
+                    channel.sendText("ERROR:" + e.getMessage());
+                }
+            }
+        } else if (decodedData.startsWith("FILE_RANGE:")) {
+            // 并行上传的一个区间：FILE_RANGE:传输ID:连接数:文件大小:校验和:区间起点:文件名
+            String[] parts = decodedData.substring(11).split(":", 6);
+            stream.abortUpload();
+            try {
+                // 整个文件的校验值是CRC32或SHA-256内容哈希，为空时（旧客户端）只校验各区间和覆盖范围
+                boolean hashed = ContentHash.isValid(parts[3]);
+                Long fileChecksum = parts[3].isEmpty() || hashed ? null : Long.parseLong(parts[3]);
+                // 加入之后不能再失败，否则该区间不会退出，整个并行上传无法清理
+                long offset = Long.parseLong(parts[4]);
+                ParallelUpload parallel = ParallelUpload.join(config.getUploadDir(), parts[0], parts[5],
+                        Long.parseLong(parts[2]), Integer.parseInt(parts[1]), fileChecksum, hashed ? parts[3] : null);
+                stream.upload = new UploadReceiver(parallel, offset, checksumAlgorithm);
+                applyNegotiated(stream);
+                channel.sendText("SERVER:开始接收文件");
+            } catch (IOException | RuntimeException e) {
+                clearNegotiated(stream);
+                channel.sendText("ERROR:无效的并行上传请求 " + e.getMessage());
+            }
+        } else if (decodedData.startsWith("FILE_START:")) {
+            // 开始接收文件
+            stream.abortUpload();
+            stream.upload = new UploadReceiver(config.getUploadDir(), decodedData.substring(11), null,
+                    uploadAlgorithm(stream));
+            applyNegotiated(stream);
+            channel.sendText("SERVER:开始接收文件");
+        } else if (decodedData.equals("FILE_END") || decodedData.startsWith("FILE_END:")) {
+            // 结束接收文件，FILE_END:算法:校验值 带有客户端发送时计算的校验值
+            if (stream.upload != null) {
+                if (stream.upload.hasMissingChunks()) {
+                    stream.pendingEnd = decodedData;
+                } else {
+                    finishUpload(stream, decodedData);
+                }
+            }
+        } else if (VERSION_CMD.equals(decodedData)) {
+            // 返回版本信息和升级标志
+            String response = "VERSION_INFO:" + config.getVersion() + ":" + config.isUpgradeFlag();
+            channel.sendText(response);
+        } else if (decodedData.startsWith(MessageChannel.UPGRADE_CHUNK_CMD)) {
+            // 客户端校验某块失败，重新发送该块：UPGRADE_CHUNK:块序号:文件名
+            String[] parts = decodedData.substring(MessageChannel.UPGRADE_CHUNK_CMD.length()).split(":", 2);
+            sendInBackground(stream, () -> sendUpgradeChunk(parts, channel));
+        } else if (decodedData.startsWith(MessageChannel.UPGRADE_DELTA_CMD)) {
+            // 客户端带有旧版本的块签名，只发送变化的部分：UPGRADE_DELTA:块大小:长度:签名:文件名
+            String[] parts = decodedData.substring(MessageChannel.UPGRADE_DELTA_CMD.length()).split(":", 4);
+            BlockSignature signature;
+            try {
+                if (parts.length < 4) {
+                    throw new IOException("缺少文件名");
+                }
+                signature = BlockSignature.parse(parts[0] + ":" + parts[1] + ":" + parts[2]);
+            } catch (IOException | RuntimeException e) {
+                channel.sendText("ERROR:无效的增量升级请求");
+                return true;
+            }
+            sendInBackground(stream, () -> sendUpgradeFile(parts[3], channel, signature));
+        } else if (decodedData.startsWith(UPGRADE_CMD)) {
+            // 处理升级文件请求
+            String requestedFile = decodedData.substring(UPGRADE_CMD.length() + 1);
+            sendInBackground(stream, () -> sendUpgradeFile(requestedFile, channel, null));
+        } else if (MessageChannel.STREAM_CLOSE_CMD.equals(decodedData)) {
+            // 客户端不再使用该流，丢弃未完成的上传和协商结果，不需要应答
+            stream.abortUpload();
+            stream.pendingChecksum = null;
+            clearNegotiated(stream);
+            leaveBatch(stream);
+        } else if (decodedData.startsWith(MessageChannel.BATCH_CMD)) {
+            // 之后完成的上传记入批次，不需要应答；批次ID为空表示退出批次
+            String batchId = decodedData.substring(MessageChannel.BATCH_CMD.length());
+            leaveBatch(stream);
+            if (batchId.matches("[0-9A-Za-z-]{1,64}")) {
+                stream.batchId = batchId;
+                engine.getUploadBatches().join(batchId);
+            }
+        } else if (decodedData.startsWith(MessageChannel.BATCH_END_CMD)) {
+            // 在一个事务中登记整个批次
+            String batchId = decodedData.substring(MessageChannel.BATCH_END_CMD.length());
+            int count = engine.getUploadBatches().commit(batchId);
+            if (batchId.equals(stream.batchId)) {
+                leaveBatch(stream);
+            }
+            log.info("批量登记文件记录: " + count + " 个 (批次 " + batchId + ")");
+            channel.sendText(MessageChannel.BATCH_END_CMD + count);
+        } else if (decodedData.startsWith(MessageChannel.LIST_CMD)) {
+            // 列出文件记录：LIST:起始ID:条数
+            listFiles(channel, decodedData.substring(MessageChannel.LIST_CMD.length()).split(":", 2), null);
+        } else if (decodedData.startsWith(MessageChannel.SEARCH_CMD)) {
+            // 按条件查询文件记录：SEARCH:起始ID:条数:条件
+            String[] parts = decodedData.substring(MessageChannel.SEARCH_CMD.length()).split(":", 3);
+            listFiles(channel, parts, parts.length < 3 ? "" : parts[2]);
+        } else if (decodedData.startsWith(MessageChannel.STATS_CMD)) {
+            // 按条件统计上传的文件数、大小和速度：STATS:条件
+            FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+            try {
+                parseCriteria(decodedData.substring(MessageChannel.STATS_CMD.length()), query);
+            } catch (RuntimeException e) {
+                channel.sendText("ERROR:无效的查询请求");
+                return true;
+            }
+            FileMetadataStore.UploadStats stats = engine.getMetadataStore().queryStats(query);
+            channel.sendText(MessageChannel.STATS_CMD + stats.fileCount + ":" + stats.totalBytes + ":"
+                    + stats.transferCount + ":" + stats.totalDurationMillis + ":" + stats.averageBytesPerSecond
+                    + ":" + stats.peakBytesPerSecond);
+        } else if (decodedData.startsWith(MessageChannel.DOWNLOAD_CMD)) {
+            // 下载已上传的文件或其中一段：DOWNLOAD:范围:文件名
+            String[] parts = decodedData.substring(MessageChannel.DOWNLOAD_CMD.length()).split(":", 2);
+            if (parts.length < 2) {
+                channel.sendText("ERROR:无效的下载请求");
+            } else {
+                sendInBackground(stream, () -> sendDownload(parts[1], parts[0], channel));
+            }
+        } else if (decodedData.startsWith(MessageChannel.HEARTBEAT_CMD + ":")) {
+            // 带序号的心跳用于健康检查，原样应答
+            channel.sendText(decodedData);
+        } else if (MessageChannel.HEARTBEAT_CMD.equals(decodedData)) {
+            // 心跳包，不做任何处理，保持连接
+            return true;
+        } else if (stream.upload != null) {
+            // 文件内容块，直接解码追加到临时文件
+            stream.upload.writeChunk(decodedData);
+            acknowledgeChunk(stream);
+        } else {
+            channel.sendText("SERVER:未知命令");
+        }
+        return true;
+    }
+
+    // 消息所属的流，第一次出现的流ID创建新的流；流数量超出限制时拒绝并返回null
+    private TransferStream streamFor(MessageChannel channel, Message received) throws IOException {
+        TransferStream stream = streams.get(received.getStreamId());
+        if (stream == null) {
+            MessageChannel streamChannel = channel.stream(received.getStreamId());
+            if (streams.size() >= MAX_STREAMS) {
+                // 后台发送完成的流在读线程上才能释放
+                streams.entrySet().removeIf(entry -> entry.getKey() != 0 && entry.getValue().isIdle());
+            }
+            if (streams.size() >= MAX_STREAMS) {
+                if (received.isText()) {
+                    streamChannel.sendText("ERROR:同时打开的流过多");
+                }
+                return null;
+            }
+            stream = new TransferStream(streamChannel);
+            streams.put(received.getStreamId(), stream);
+        }
+        return stream;
+    }
+
+    private interface SendTask {
+        void run() throws IOException;
+    }
+
+    // 多路复用流上的下载和升级文件交给线程池发送，读线程继续处理其他流的消息，各个流的数据帧在发送锁上交替写出；
+    // 控制流没有流ID区分应答，仍在读线程上按顺序发送。发送失败时数据已不完整，关闭连接
+    private void sendInBackground(TransferStream stream, SendTask task) throws IOException {
+        if (stream.channel.getStreamId() == 0) {
+            task.run();
+            return;
+        }
+        Runnable send = () -> {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                log.error("后台发送失败: " + e.getMessage());
+                closeConnection();
+            }
+        };
+        stream.sending = stream.sending == null
+                ? CompletableFuture.runAsync(send, engine.getExecutor())
+                : stream.sending.thenRunAsync(send, engine.getExecutor());
+    }
+
+    private void closeConnection() {
+        clientConnected = false;
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            log.error("关闭客户端socket错误: " + e.getMessage());
+        }
+    }
+
+    // 调试日志只记录命令的开头部分，文件块内容不完整输出
+    private static String abbreviate(String text) {
+        if (text.length() <= LOG_TEXT_LIMIT) {
+            return text;
+        }
+        return text.substring(0, LOG_TEXT_LIMIT) + "...(共" + text.length() + "字符)";
+    }
+
+    private void leaveBatch(TransferStream stream) {
+        if (stream.batchId != null) {
+            engine.getUploadBatches().leave(stream.batchId);
+            stream.batchId = null;
+        }
+    }
+
+    // 登记上传完成的文件：流加入了批次时记入批次，由BATCH_END统一写入数据库
+    private void registerFile(TransferStream stream, FileMetadataStore.FileRecord record) {
+        if (stream.batchId != null && engine.getUploadBatches().add(stream.batchId, record)) {
+            log.debug("文件已记入批次: " + record.filename);
+            return;
+        }
+        // 不等待写入，由数据库的写线程与其他连接的记录一起提交
+        engine.getMetadataStore().insertFileAsync(record)
+                .thenAccept(recordId -> log.info("文件记录已存入数据库，ID: " + recordId));
+    }
+
+    // 已保存到内容存储的文件的记录，传输耗时和校验值由调用方按需填写
+    private FileMetadataStore.FileRecord newRecord(String fileName, String hash, Path storedPath) throws IOException {
+        FileMetadataStore.FileRecord record = new FileMetadataStore.FileRecord();
+        record.filename = fileName;
+        record.description = UPLOAD_DESCRIPTION;
+        record.contentHash = hash;
+        record.fileSize = Files.size(storedPath);
+        record.storagePath = storedPath.toString().replace('\\', '/');
+        record.clientAddress = clientSocket.getInetAddress().getHostAddress();
+        return record;
+    }
+
+    // 刚开始的上传使用之前协商的压缩和打包，协商只对这一次上传有效（开始失败时同样作废）
+    private void applyNegotiated(TransferStream stream) {
+        stream.upload.setCompressed(stream.pendingCompression);
+        stream.bundle = stream.pendingBundle;
+        clearNegotiated(stream);
+    }
+
+    private void clearNegotiated(TransferStream stream) {
+        stream.pendingCompression = false;
+        stream.pendingBundle = false;
+    }
+
+    private void receiveChunk(TransferStream stream, Message chunk) throws IOException {
+        boolean valid = stream.upload.acceptChunk(chunk);
+        for (long index : stream.upload.takeResendRequests()) {
+            log.info("数据块校验失败或缺失，请求重传: " + stream.upload.getFileName() + " #" + index);
+            stream.channel.sendText(MessageChannel.RESEND_PREFIX + index);
+        }
+        if (!valid) {
+            return;
+        }
+        acknowledgeChunk(stream);
+        if (stream.pendingEnd != null && !stream.upload.hasMissingChunks()) {
+            finishUpload(stream, stream.pendingEnd);
+        }
+    }
+
+    private void finishUpload(TransferStream stream, String endCommand) throws IOException {
+        if (handleFileUpload(stream, endCommand)) {
+            stream.channel.sendText("SERVER:文件已接收");
+        } else {
+            stream.channel.sendText("ERROR:文件保存失败");
+        }
+        stream.upload = null;
+        stream.ackedChunks = 0;
+        stream.pendingEnd = null;
+        stream.bundle = false;
+    }
+
+    private void acknowledgeChunk(TransferStream stream) throws IOException {
+        if (ackInterval == 0) {
+            stream.channel.sendText("SERVER:文件块已接收");
+        } else if (stream.upload.getChunkCount() - stream.ackedChunks >= ackInterval) {
+            // 重传的块写入后可能一次写入多个暂存的块，按实际写入的块数确认
+            stream.ackedChunks = stream.upload.getChunkCount();
+            stream.channel.sendText(MessageChannel.ACK_PREFIX + stream.ackedChunks);
+        }
+    }
+
+    // 旧客户端发送过CHECKSUM时按CRC32计算，以便与其比较
+    private CRC32Util.Algorithm uploadAlgorithm(TransferStream stream) {
+        return stream.pendingChecksum != null ? CRC32Util.Algorithm.CRC32 : checksumAlgorithm;
+    }
+
+    // 从FILE_END命令中取出客户端的校验值，没有时使用旧客户端上传前发送的CHECKSUM
+    private Long expectedChecksum(TransferStream stream, UploadReceiver upload, String endCommand) throws IOException {
+        Long expected = stream.pendingChecksum;
+        stream.pendingChecksum = null;
+        if (endCommand.length() > 9) {
+            String[] parts = endCommand.substring(9).split(":", 2);
+            if (parts.length < 2 || CRC32Util.parseAlgorithm(parts[0]) != upload.getAlgorithm()) {
+                throw new IOException("校验算法与协商的不一致: " + endCommand);
+            }
+            expected = Long.parseUnsignedLong(parts[1], 16);
+        }
+        return expected;
+    }
+
+    private boolean handleFileUpload(TransferStream stream, String endCommand) {
+        UploadReceiver upload = stream.upload;
+        String fileName = upload.getFileName();
+        try {
+            Path filePath = upload.finish(expectedChecksum(stream, upload, endCommand));
+            if (filePath == null) {
+                // 并行上传还有其他区间未完成，由最后完成的连接保存记录
+                log.info("文件区间已接收: " + fileName);
+                return true;
+            }
+
+            if (stream.bundle) {
+                unpackBundle(stream, filePath);
+                return true;
+            }
+
+            String[] hash = {upload.getContentHash()};
+            Path storedPath = storeFile(filePath, fileName, hash);
+
+            // 校验值在接收时已计算，不再读取保存后的文件
+            if (upload.isRange()) {
+                log.info("文件保存成功: " + fileName + " -> " + storedPath + " (并行上传校验通过)");
+            } else {
+                log.info("文件保存成功: " + fileName + " -> " + storedPath + " (" + upload.getAlgorithm()
+                        + "校验和: " + Long.toHexString(upload.getChecksum()) + ")");
+            }
+
+            FileMetadataStore.FileRecord record = newRecord(fileName, hash[0], storedPath);
+            if (!upload.isRange()) {
+                record.checksum = upload.getAlgorithm() + ":" + Long.toHexString(upload.getChecksum());
+            }
+            // 续传只计本次接收的部分；并行上传从第一个区间开始计时，按整个文件计算速度
+            record.durationMillis = upload.getElapsedMillis();
+            long transferred = upload.isRange() ? record.fileSize : upload.getReceivedBytes();
+            record.bytesPerSecond = transferred * 1000 / Math.max(1, record.durationMillis);
+            registerFile(stream, record);
+            return true;
+        } catch (Exception e) {
+            log.error("处理文件上传失败: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // 把接收完成的文件放入内容存储，hash[0]为接收时计算的内容哈希（可以为null），内容改变时更新为保存的内容的哈希
+    private Path storeFile(Path filePath, String fileName, String[] hash) throws Exception {
+        try {
+            // BMP图片添加LSB隐写信息
+            if (fileName.toLowerCase().endsWith(".bmp")) {
+                BufferedImage image = ImageIO.read(filePath.toFile());
+                String message = "syc" + System.currentTimeMillis();
+                BufferedImage stegoImage = LSBSteganography.hideTextInImage(message, image, true, 12345);
+                ImageIO.write(stegoImage, "bmp", filePath.toFile());
+                log.info("将bmp图片添加了LSB隐写信息: " + message);
+                // 内容已改变，按保存的内容重新计算哈希
+                hash[0] = null;
+            }
+            if (hash[0] == null) {
+                // 并行上传各区间由不同连接接收，重组后读一遍文件计算哈希
+                hash[0] = ContentHash.ofFile(filePath.toFile());
+            }
+            return engine.getContentStore().put(filePath, hash[0]);
+        } catch (Exception e) {
+            Files.deleteIfExists(filePath);
+            throw e;
+        }
+    }
+
+    // 解包多个小文件的打包上传：逐个写入临时文件并计算哈希后放入内容存储，全部保存后在一个事务中登记
+    private void unpackBundle(TransferStream stream, Path bundlePath) throws Exception {
+        List<FileMetadataStore.FileRecord> records = new ArrayList<>();
+        int batched = 0;
+        Path dir = bundlePath.getParent();
+        try (FileBundle.Reader reader = new FileBundle.Reader(Files.newInputStream(bundlePath))) {
+            for (FileBundle.Entry entry : reader.getEntries()) {
+                String fileName = UploadReceiver.safeFileName(entry.getName());
+                Path temp = Files.createTempFile(dir, ".bundle.", ".part");
+                MessageDigest digest = ContentHash.newDigest();
+                try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+                    reader.copyNext(out);
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+                String[] hash = {ContentHash.hex(digest.digest())};
+                Path storedPath = storeFile(temp, fileName, hash);
+                FileMetadataStore.FileRecord record = newRecord(fileName, hash[0], storedPath);
+                if (stream.batchId != null && engine.getUploadBatches().add(stream.batchId, record)) {
+                    batched++;
+                    continue;
+                }
+                records.add(record);
+            }
+        } finally {
+            Files.deleteIfExists(bundlePath);
+        }
+        int inserted = records.isEmpty() ? 0 : engine.getMetadataStore().insertFiles(records);
+        log.info("文件包已解包: " + (batched + records.size()) + " 个文件, 登记 " + inserted + " 条"
+                + (batched > 0 ? ", 记入批次 " + batched + " 条" : ""));
+    }
+
+    // 上传前的去重查询：HAVE:内容哈希:文件名，已保存过相同内容时直接记录文件名，客户端不必再上传
+    private String handleHave(TransferStream stream, String request) {
+        String[] parts = request.split(":", 2);
+        try {
+            if (parts.length < 2 || !engine.getContentStore().contains(parts[0])) {
+                return MessageChannel.HAVE_CMD + "NO";
+            }
+            String fileName = UploadReceiver.safeFileName(parts[1]);
+            log.info("文件内容已存在，跳过上传: " + fileName);
+            registerFile(stream, newRecord(fileName, parts[0], engine.getContentStore().path(parts[0])));
+            return MessageChannel.HAVE_CMD + "YES";
+        } catch (IOException e) {
+            return "ERROR:" + e.getMessage();
+        }
+    }
+
+    // 逐条应答查询到的记录，最后应答LIST_END:下一页的起始ID；条数为0时逐页读取并发送所有符合条件的记录
+    private void listFiles(MessageChannel channel, String[] parts, String criteria) throws IOException {
+        FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+        try {
+            query.afterId = Long.parseLong(parts[0]);
+            query.limit = parts.length < 2 || parts[1].isEmpty() ? FileMetadataStore.DEFAULT_PAGE_SIZE : Integer.parseInt(parts[1]);
+            if (criteria != null) {
+                parseCriteria(criteria, query);
+            }
+        } catch (RuntimeException e) {
+            channel.sendText("ERROR:无效的查询请求");
+            return;
+        }
+
+        long next = 0;
+        if (query.limit <= 0) {
+            Iterator<FileMetadataStore.FileRecord> records = engine.getMetadataStore().iterateFiles(query);
+            while (records.hasNext()) {
+                channel.writeText(formatRecord(records.next()));
+            }
+        } else {
+            List<FileMetadataStore.FileRecord> records = engine.getMetadataStore().queryFiles(query);
+            for (FileMetadataStore.FileRecord record : records) {
+                channel.writeText(formatRecord(record));
+            }
+            if (records.size() == Math.min(query.limit, FileMetadataStore.MAX_PAGE_SIZE)) {
+                next = records.get(records.size() - 1).id;
+            }
+        }
+        channel.sendText(MessageChannel.LIST_END_CMD + next);
+    }
+
+    // 条件格式：name=前缀&hash=内容哈希&from=起始时间&to=结束时间，各值经过URL编码
+    private static void parseCriteria(String criteria, FileMetadataStore.FileQuery query) {
+        for (String pair : criteria.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("无效的查询条件: " + pair);
+            }
+            String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            switch (pair.substring(0, eq)) {
+                case "name":
+                    query.filenamePrefix = value;
+                    break;
+                case "hash":
+                    query.contentHash = value;
+                    break;
+                case "from":
+                    query.uploadedFrom = value;
+                    break;
+                case "to":
+                    query.uploadedTo = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("无效的查询条件: " + pair);
+            }
+        }
+    }
+
+    private static String formatRecord(FileMetadataStore.FileRecord record) {
+        return MessageChannel.RECORD_PREFIX + record.id + "\t" + record.uploadTime + "\t"
+                + (record.contentHash == null ? "" : record.contentHash) + "\t" + record.filename;
+    }
+
+    // 该文件名最近一次上传内容的块签名，格式为 内容哈希:块签名；没有旧版本时返回空字符串
+    private String deltaSignature(String name) {
+        try {
+            String hash = engine.getMetadataStore().findContentHash(UploadReceiver.safeFileName(name));
+            if (hash == null || !engine.getContentStore().contains(hash)) {
+                return "";
+            }
+            return hash + ":" + BlockSignature.of(engine.getContentStore().path(hash)).format();
+        } catch (IOException e) {
+            log.error("计算块签名失败: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private void startDeltaUpload(String[] parts, TransferStream stream) throws IOException {
+        if (parts.length < 3 || !engine.getContentStore().contains(parts[0])) {
+            clearNegotiated(stream);
+            stream.channel.sendText("ERROR:无效的增量上传请求");
+            return;
+        }
+        try {
+            stream.upload = new UploadReceiver(config.getUploadDir(), parts[2], null, uploadAlgorithm(stream));
+            stream.upload.setDeltaBase(new DeltaBase(engine.getContentStore().path(parts[0]), Integer.parseInt(parts[1])));
+            applyNegotiated(stream);
+            log.info("增量上传: " + stream.upload.getFileName() + " (基于 " + parts[0] + ")");
+            stream.channel.sendText("SERVER:开始接收文件");
+        } catch (IOException | RuntimeException e) {
+            stream.abortUpload();
+            clearNegotiated(stream);
+            stream.channel.sendText("ERROR:无效的增量上传请求 " + e.getMessage());
+        }
+    }
+
+    // 复制失败时放弃本次上传，客户端在等待结束应答时收到错误
+    private void copyDeltaBlocks(String[] parts, TransferStream stream) throws IOException {
+        try {
+            stream.upload.copyBlocks(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } catch (IOException | RuntimeException e) {
+            log.error("增量上传复制失败: " + e.getMessage());
+            stream.abortUpload();
+            stream.channel.sendText("ERROR:文件保存失败");
+        }
+    }
+
+    // 发送升级文件，signature不为空时按客户端旧版本的块签名只发送变化的部分
+    private void sendUpgradeFile(String fileName, MessageChannel channel, BlockSignature signature)
+            throws IOException {
+        try {
+            Path filePath = Paths.get(config.getUpgradeDir()).resolve(Paths.get(fileName).getFileName());
+            if (Files.exists(filePath)) {
+                // 校验和按原始文件计算，与客户端对保存后文件的校验一致
+                long checksum = engine.getChecksumCache().get(filePath);
+                channel.sendText("CHECKSUM:" + checksum);
+                if (channel.isBinary()) {
+                    // 各块的校验值，客户端发现损坏的块时只补取该块
+                    channel.sendText(MessageChannel.CHUNK_SUMS_PREFIX + engine.getChecksumCache().getChunkSums(filePath));
+                }
+                if (signature != null) {
+                    sendUpgradeDelta(fileName, filePath, channel, signature);
+                    return;
+                }
+                channel.sendText("FILE_START:" + fileName);
+
+                if (channel.isBinary() && channel.getStreamId() == 0) {
+                    // 二进制模式直接从磁盘零拷贝发送到socket，多路复用流上按数据块发送以便与其他流交错
+                    channel.sendFileStream(filePath);
+                } else {
+                    try (InputStream in = Files.newInputStream(filePath)) {
+                        channel.sendStream(in);
+                    }
+                }
+
+                channel.sendText("FILE_END");
+                log.info("升级文件已发送: " + fileName + " (校验和: " + checksum + ")");
+            } else {
+                channel.sendText("ERROR:文件不存在");
+            }
+        } catch (Exception e) {
+            log.error("发送升级文件失败: " + e.getMessage());
+            channel.sendText("ERROR:发送失败");
+        }
+    }
+
+    // 发送已上传文件的一段，文件按名称查找最近一次上传的内容；范围超出文件时应答错误，不发送数据
+    private void sendDownload(String name, String range, MessageChannel channel) throws IOException {
+        String fileName = UploadReceiver.safeFileName(name);
+        String hash = engine.getMetadataStore().findContentHash(fileName);
+        if (hash == null || !engine.getContentStore().contains(hash)) {
+            channel.sendText("ERROR:文件不存在");
+            return;
+        }
+        try (FileChannel file = FileChannel.open(engine.getContentStore().path(hash), StandardOpenOption.READ)) {
+            long size = file.size();
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                channel.sendText("ERROR:无效的范围");
+                return;
+            }
+            long length = bounds[1] - bounds[0];
+            channel.sendText(MessageChannel.DOWNLOAD_CMD + bounds[0] + ":" + length + ":" + size + ":" + hash);
+            channel.sendFileRange(file, bounds[0], length);
+            channel.sendText("FILE_END");
+            log.info("文件已发送: " + fileName + " (" + bounds[0] + "-" + bounds[1] + "/" + size + ")");
+        } catch (IOException e) {
+            // 数据已开始发送时客户端无法再按协议读取，关闭连接
+            log.error("发送文件失败: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    // 解析HTTP Range形式的范围，返回[起点, 终点)，无效或超出文件时返回null；空文件无论范围都应答长度0
+    static long[] parseRange(String range, long size) {
+        if (range.isEmpty() || size == 0) {
+            return new long[]{0, size};
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = range.substring(0, dash);
+            String last = range.substring(dash + 1);
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // -N 表示最后N个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, size - suffix);
+                end = size;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size : Math.min(size, Long.parseLong(last) + 1);
+            }
+            if (start < 0 || start >= size || end <= start) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void sendUpgradeDelta(String fileName, Path filePath, MessageChannel channel, BlockSignature signature)
+            throws IOException {
+        channel.sendText(MessageChannel.DELTA_START_CMD + fileName);
+        DeltaEncoder encoder = new DeltaEncoder(signature);
+        int blockSize = channel.getBlockSize();
+        try (InputStream in = Files.newInputStream(filePath)) {
+            encoder.encode(in, new DeltaEncoder.Sink() {
+                @Override
+                public void literal(byte[] data, int off, int len) throws IOException {
+                    for (int i = 0; i < len; i += blockSize) {
+                        channel.sendData(data, off + i, Math.min(blockSize, len - i));
+                    }
+                }
+
+                @Override
+                public void copy(long index, long count) throws IOException {
+                    channel.sendText(MessageChannel.DELTA_COPY_CMD + index + ":" + count);
+                }
+            });
+        }
+        channel.sendText("FILE_END");
+        log.info("升级文件已增量发送: " + fileName + " (新数据 " + encoder.getLiteralBytes() + " 字节, 复用 "
+                + encoder.getCopiedBytes() + " 字节)");
+    }
+
+    // 重新发送升级文件的一块，块大小与CHUNK_SUMS中的一致
+    private void sendUpgradeChunk(String[] parts, MessageChannel channel) throws IOException {
+        try {
+            long index = Long.parseLong(parts[0]);
+            Path filePath = Paths.get(config.getUpgradeDir()).resolve(Paths.get(parts[1]).getFileName());
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                long position = index * ChecksumCache.BLOCK_SIZE;
+                if (index < 0 || position >= file.size()) {
+                    channel.sendText("ERROR:无效的块序号");
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(ChecksumCache.BLOCK_SIZE, file.size() - position));
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                channel.sendChunk(index, buffer.array(), 0, buffer.position());
+                channel.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("重发升级文件块失败: " + e.getMessage());
+            channel.sendText("ERROR:发送失败");
+        }
+    }
+}
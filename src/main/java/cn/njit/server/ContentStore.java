@@ -0,0 +1,61 @@
+package cn.njit.server;
+
+import cn.njit.util.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 按内容存储上传的文件：文件保存为 上传目录/.objects/哈希前两位/哈希，相同内容只保存一份，
+ * 文件名与内容哈希的对应关系记录在数据库中。
+ */
+public class ContentStore {
+    public static final String OBJECTS_DIR = ".objects";
+
+    private final Path root;
+
+    public ContentStore(String uploadDir) {
+        this.root = Paths.get(uploadDir).resolve(OBJECTS_DIR);
+    }
+
+    public Path path(String hash) throws IOException {
+        if (!ContentHash.isValid(hash)) {
+            throw new IOException("无效的内容哈希: " + hash);
+        }
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public boolean contains(String hash) {
+        try {
+            return Files.exists(path(hash));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // 把已接收完成的文件放入存储；已有相同内容时直接删除该文件。返回存储中的路径
+    public Path put(Path file, String hash) throws IOException {
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            Files.deleteIfExists(file);
+            return target;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(file, target);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // 另一个连接同时保存了相同内容
+            Files.deleteIfExists(file);
+        }
+        return target;
+    }
+}
@@ -0,0 +1,222 @@
+package cn.njit.server;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 并行上传：一个文件被分成多个区间由多个连接同时上传，各区间按偏移写入同一个临时文件，全部完成后校验并交给最后完成的连接存储
+public class ParallelUpload {
+    private static final Map<String, ParallelUpload> UPLOADS = new ConcurrentHashMap<>();
+
+    private final String transferId;
+    private final String fileName;
+    private final Path tempPath;
+    private final int streams;
+    // 整个文件的CRC32或SHA-256内容哈希，重组后读取一遍文件校验；都为空时只检查各区间覆盖了整个文件
+    private final Long checksum;
+    private final String contentHash;
+    private final long totalSize;
+    private final FileChannel fileChannel;
+    private int activeRanges = 0;
+    // 已加入的区间数，不能超过声明的连接数
+    private int joinedRanges = 0;
+    // 已接收完整的区间，起点 -> 终点（不含），相邻和重叠的区间合并保存
+    private final TreeMap<Long, Long> receivedRanges = new TreeMap<>();
+    private boolean failed = false;
+    private boolean closed = false;
+    // 第一个区间开始的时间，用于记录整个文件的传输耗时
+    private final long startNanos = System.nanoTime();
+
+    private ParallelUpload(String uploadDir, String transferId, String fileName, long totalSize,
+                           int streams, Long checksum, String contentHash) throws IOException {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.streams = streams;
+        this.checksum = checksum;
+        this.contentHash = contentHash;
+        this.totalSize = totalSize;
+
+        Path dir = Paths.get(uploadDir);
+        Path partialDir = dir.resolve(UploadReceiver.PARTIAL_DIR);
+        Files.createDirectories(partialDir);
+        this.tempPath = partialDir.resolve(transferId + ".parallel");
+        this.fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 预先设置文件大小，各区间直接写入各自的位置
+        if (totalSize > 0) {
+            fileChannel.write(ByteBuffer.allocate(1), totalSize - 1);
+        }
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    // 加入一个并行上传的区间，第一个到达的连接负责创建临时文件；之后加入的区间必须声明相同的文件和校验值
+    public static ParallelUpload join(String uploadDir, String transferId, String fileName, long totalSize,
+                                      int streams, Long checksum, String contentHash) throws IOException {
+        UploadReceiver.checkTransferId(transferId);
+        String safeName = UploadReceiver.safeFileName(fileName);
+        // 创建临时文件之前检查，否则没有区间加入的上传不会被清理
+        if (streams < 1 || streams > MessageChannel.MAX_PARALLEL_STREAMS) {
+            throw new IOException("无效的连接数: " + streams);
+        }
+        if (totalSize < 0) {
+            throw new IOException("无效的文件大小: " + totalSize);
+        }
+        ParallelUpload upload;
+        try {
+            upload = UPLOADS.computeIfAbsent(transferId, id -> {
+                try {
+                    return new ParallelUpload(uploadDir, id, safeName, totalSize, streams, checksum, contentHash);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        synchronized (upload) {
+            if (upload.failed || upload.closed) {
+                throw new IOException("并行上传已失败，请重新上传");
+            }
+            if (upload.totalSize != totalSize || upload.streams != streams || !upload.fileName.equals(safeName)
+                    || !Objects.equals(upload.checksum, checksum) || !Objects.equals(upload.contentHash, contentHash)) {
+                throw new IOException("与已开始的并行上传的文件或校验值不一致");
+            }
+            if (upload.joinedRanges >= upload.streams) {
+                throw new IOException("区间数超过声明的连接数");
+            }
+            upload.joinedRanges++;
+            upload.activeRanges++;
+        }
+        return upload;
+    }
+
+    // 该传输ID的并行上传是否还在进行中
+    static boolean isActive(String transferId) {
+        return UPLOADS.containsKey(transferId);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    // 客户端声明并已校验的内容哈希，没有时为null，由保存时计算
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    // 一个区间[start, end)上传完成。整个文件都已收到且没有区间还在写入时返回重组后的临时文件（由调用方存储）；
+    // 还有区间未完成时返回null；上传已失败时抛出异常，最后一个退出的区间负责清理
+    public Path completeRange(long start, long end) throws IOException {
+        synchronized (this) {
+            activeRanges--;
+            if (!failed && (start < 0 || end > totalSize || start > end)) {
+                failed = true;
+            }
+            if (failed) {
+                cleanupIfIdle();
+                throw new IOException("并行上传已失败");
+            }
+            addRange(start, end);
+            if (activeRanges > 0 || !isComplete()) {
+                if (activeRanges == 0 && joinedRanges >= streams) {
+                    // 所有区间都已结束但文件仍有空洞，不会再有区间加入
+                    failed = true;
+                    cleanupIfIdle();
+                    throw new IOException("并行上传的区间没有覆盖整个文件");
+                }
+                return null;
+            }
+            closed = true;
+        }
+
+        UPLOADS.remove(transferId, this);
+        try {
+            fileChannel.close();
+            if (checksum != null) {
+                // 校验重组后的完整文件
+                long actual = CRC32Util.calculateFile(tempPath.toString());
+                if (actual != checksum) {
+                    throw new IOException("校验和不匹配 (预期: " + checksum + ", 实际: " + actual + ")");
+                }
+            }
+            if (contentHash != null && !contentHash.equals(ContentHash.ofFile(tempPath.toFile()))) {
+                throw new IOException("内容哈希不匹配 (预期: " + contentHash + ")");
+            }
+            return tempPath;
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    // 一个区间中断，整个并行上传失败，最后一个连接退出时清理临时文件
+    public void abortRange() {
+        synchronized (this) {
+            activeRanges--;
+            failed = true;
+            cleanupIfIdle();
+        }
+    }
+
+    // 记录收到的区间，与已有的相邻或重叠区间合并
+    private void addRange(long start, long end) {
+        if (start == end) {
+            return;
+        }
+        Map.Entry<Long, Long> before = receivedRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = receivedRanges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            receivedRanges.remove(next.getKey());
+        }
+        receivedRanges.put(start, end);
+    }
+
+    // 收到的区间是否覆盖了整个文件
+    private boolean isComplete() {
+        if (totalSize == 0) {
+            return true;
+        }
+        Map.Entry<Long, Long> first = receivedRanges.firstEntry();
+        return first != null && first.getKey() == 0 && first.getValue() == totalSize;
+    }
+
+    // 上传失败且没有区间还在写入时关闭并删除临时文件，之后同一传输ID可以重新开始
+    private void cleanupIfIdle() {
+        if (activeRanges > 0 || closed) {
+            return;
+        }
+        closed = true;
+        UPLOADS.remove(transferId, this);
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            System.err.println("删除临时文件失败: " + tempPath + " " + e.getMessage());
+        }
+    }
+}
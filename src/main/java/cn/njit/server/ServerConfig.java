@@ -0,0 +1,101 @@
+package cn.njit.server;
+
+// 服务端配置，默认值可通过系统属性覆盖（如 -Dserver.port=9999）
+public class ServerConfig {
+    private int port = Integer.getInteger("server.port", 8888);
+    // 最大并发连接数
+    private int maxConnections = Integer.getInteger("server.maxConnections", 10000);
+    // 等待accept的连接队列长度
+    private int backlog = Integer.getInteger("server.backlog", 1024);
+    // 读取超时（毫秒），客户端在此时间内没有任何消息则断开
+    private int readTimeout = Integer.getInteger("server.readTimeout", 120000);
+    private String uploadDir = System.getProperty("server.uploadDir", "uploads");
+    private String upgradeDir = System.getProperty("server.upgradeDir", "upgrades");
+    // 当前版本号及是否提示客户端升级
+    private String version = System.getProperty("server.version", "1.0.0");
+    private boolean upgradeFlag = Boolean.getBoolean("server.upgrade");
+    // 文件记录的存储：sqlite保存在data.db中，memory只保存在内存中（性能测试、不需要保留记录的节点）
+    private String metadataStore = System.getProperty("server.metadataStore", "sqlite");
+    // 中断的上传保留的小时数，超过后删除未完成的临时文件，客户端只能重新上传
+    private int partialExpiryHours = Integer.getInteger("server.partialExpiryHours", 24);
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public String getUploadDir() {
+        return uploadDir;
+    }
+
+    public void setUploadDir(String uploadDir) {
+        this.uploadDir = uploadDir;
+    }
+
+    public String getUpgradeDir() {
+        return upgradeDir;
+    }
+
+    public void setUpgradeDir(String upgradeDir) {
+        this.upgradeDir = upgradeDir;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public boolean isUpgradeFlag() {
+        return upgradeFlag;
+    }
+
+    public void setUpgradeFlag(boolean upgradeFlag) {
+        this.upgradeFlag = upgradeFlag;
+    }
+
+    public String getMetadataStore() {
+        return metadataStore;
+    }
+
+    public void setMetadataStore(String metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    public int getPartialExpiryHours() {
+        return partialExpiryHours;
+    }
+
+    public void setPartialExpiryHours(int partialExpiryHours) {
+        this.partialExpiryHours = partialExpiryHours;
+    }
+}
@@ -0,0 +1,183 @@
+package cn.njit.server;
+
+import cn.njit.db.FileMetadataStore;
+import cn.njit.protocol.MessageChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无界面的服务端核心：监听端口、接受连接并为每个连接运行ClientHandler。
+ * 控制台（Server）和图形界面（ServerGUI）只负责创建配置和显示日志，协议处理全部在这里完成。
+ */
+public class ServerEngine {
+    // 通过FEATURES命令告知客户端的可选功能
+    static final String FEATURES = MessageChannel.FEATURE_RESUME + "," + MessageChannel.FEATURE_PARALLEL
+            + "," + MessageChannel.FEATURE_CHECKSUM + "," + MessageChannel.FEATURE_CHUNK_CHECKSUM + "," + MessageChannel.FEATURE_DEDUP
+            + "," + MessageChannel.FEATURE_DELTA + "," + MessageChannel.FEATURE_COMPRESS + "," + MessageChannel.FEATURE_MUX
+            + "," + MessageChannel.FEATURE_BATCH + "," + MessageChannel.FEATURE_BUNDLE
+            + "," + MessageChannel.FEATURE_LIST + "," + MessageChannel.FEATURE_STATS
+            + "," + MessageChannel.FEATURE_DOWNLOAD;
+
+    private static final long PARTIAL_SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ServerConfig config;
+    private final ServerLog log;
+    private final FileMetadataStore metadataStore;
+    // 升级文件的校验和缓存，发布新版本后大量客户端同时下载时只计算一次
+    private final ChecksumCache checksumCache = new ChecksumCache();
+    private final ContentStore contentStore;
+    private final UploadBatches uploadBatches;
+    private final Semaphore connectionPermits;
+    // 每个连接一个虚拟线程，阻塞I/O时不占用平台线程，可同时处理数千个连接
+    private final ExecutorService threadPool = Executors.newVirtualThreadPerTaskExecutor();
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+    // 上次清理过期续传临时文件的时间
+    private final AtomicLong lastPartialSweep = new AtomicLong();
+
+    public ServerEngine(ServerConfig config, ServerLog log) {
+        this.config = config;
+        this.log = log;
+        this.connectionPermits = new Semaphore(config.getMaxConnections());
+        this.contentStore = new ContentStore(config.getUploadDir());
+
+        metadataStore = FileMetadataStore.create(config.getMetadataStore());
+        metadataStore.connect();
+        uploadBatches = new UploadBatches(metadataStore);
+
+        try {
+            Files.createDirectories(Paths.get(config.getUploadDir()));
+            Files.createDirectories(Paths.get(config.getUpgradeDir()));
+        } catch (IOException e) {
+            log.error("无法创建上传目录: " + e.getMessage());
+        }
+    }
+
+    public void start() throws IOException {
+        // 通过ServerSocketChannel创建，接受的连接带有SocketChannel，可以使用零拷贝发送
+        serverSocket = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(config.getPort()), config.getBacklog()).socket();
+        running = true;
+        log.info("服务端启动, listening on port:" + config.getPort() + ", 最大连接数:" + config.getMaxConnections());
+        sweepPartials();
+
+        // 使用单独线程处理客户端连接
+        Thread acceptThread = new Thread(() -> {
+            while (running) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    log.info("客户端连接:" + clientSocket.getInetAddress());
+                    if (!connectionPermits.tryAcquire()) {
+                        rejectConnection(clientSocket);
+                        continue;
+                    }
+                    threadPool.execute(new ClientHandler(this, clientSocket));
+                } catch (IOException e) {
+                    if (running) {
+                        log.error("接受连接错误: " + e.getMessage());
+                    }
+                }
+            }
+        }, "server-accept");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log.error("关闭ServerSocket错误: " + e.getMessage());
+        }
+
+        // 优雅关闭线程池
+        threadPool.shutdown();
+        try {
+            if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                threadPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        metadataStore.disconnect();
+        log.info("服务端已停止");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    ServerLog getLog() {
+        return log;
+    }
+
+    FileMetadataStore getMetadataStore() {
+        return metadataStore;
+    }
+
+    ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
+
+    ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    UploadBatches getUploadBatches() {
+        return uploadBatches;
+    }
+
+    // 在处理连接的线程池中执行耗时的发送任务，使同一连接上的多个流并行发送
+    Executor getExecutor() {
+        return threadPool;
+    }
+
+    // 清理中断后长时间没有续传的临时文件：启动时执行一次，之后在续传请求到达时最多每小时执行一次
+    void sweepPartials() {
+        long now = System.currentTimeMillis();
+        long last = lastPartialSweep.get();
+        if (now - last < PARTIAL_SWEEP_INTERVAL_MILLIS || !lastPartialSweep.compareAndSet(last, now)) {
+            return;
+        }
+        int count = UploadReceiver.sweepPartials(config.getUploadDir(),
+                TimeUnit.HOURS.toMillis(config.getPartialExpiryHours()));
+        if (count > 0) {
+            log.info("已清理过期的未完成上传: " + count + " 个");
+        }
+    }
+
+    // 连接处理结束，释放连接名额
+    void connectionClosed() {
+        connectionPermits.release();
+    }
+
+    // 连接数已达上限：告知客户端后直接关闭，不占用处理线程
+    private void rejectConnection(Socket clientSocket) {
+        try (MessageChannel channel = new MessageChannel(clientSocket)) {
+            channel.sendText("ERROR:连接数已达上限，请稍后重试");
+        } catch (IOException e) {
+            log.error("拒绝连接错误: " + e.getMessage());
+        }
+        log.info("连接数已达上限，拒绝连接: " + clientSocket.getInetAddress());
+    }
+}
@@ -0,0 +1,45 @@
+package cn.njit.server;
+
+// 服务端日志输出，由控制台、图形界面等前端提供实现
+public interface ServerLog {
+    enum Level {
+        DEBUG, INFO, ERROR
+    }
+
+    void log(Level level, String message);
+
+    // 调用方在拼接较大的日志内容前先判断级别，避免无用的字符串构造
+    default boolean isEnabled(Level level) {
+        return true;
+    }
+
+    default void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    default void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    default void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    // 异步输出到控制台，级别由 -Dserver.logLevel 指定（默认INFO）
+    static AsyncServerLog console() {
+        return new AsyncServerLog(AsyncServerLog.defaultLevel(), batch -> {
+            StringBuilder out = new StringBuilder();
+            StringBuilder err = new StringBuilder();
+            for (AsyncServerLog.Entry entry : batch) {
+                (entry.getLevel() == Level.ERROR ? err : out).append(entry.getMessage()).append('\n');
+            }
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+            }
+            if (err.length() > 0) {
+                System.err.print(err);
+            }
+        });
+    }
+}
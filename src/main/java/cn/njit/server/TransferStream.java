@@ -0,0 +1,49 @@
+package cn.njit.server;
+
+import cn.njit.protocol.MessageChannel;
+
+import java.util.concurrent.CompletableFuture;
+
+// 连接上一个多路复用流的上传状态，不使用多路复用的客户端只有流ID为0的一个流
+class TransferStream {
+    // 在该流上应答，多路复用流的应答带有相同的流ID
+    final MessageChannel channel;
+    // 当前正在接收的文件，文件块到达即写入临时文件
+    UploadReceiver upload;
+    // 最近一次累计确认的块数
+    long ackedChunks = 0;
+    // 收到FILE_END时还有块在等待重传，重传完成后再结束接收
+    String pendingEnd;
+    // 旧客户端在上传前通过CHECKSUM:发送的整个文件的CRC32
+    Long pendingChecksum;
+    // 客户端通过COMPRESS协商了压缩，作用于下一次开始的上传
+    boolean pendingCompression;
+    // 客户端通过BUNDLE协商了打包上传，作用于下一次开始的上传
+    boolean pendingBundle;
+    // 当前上传是多个小文件的打包，接收完成后解包保存
+    boolean bundle;
+    // 通过BATCH加入的批次，完成的上传记入批次，由BATCH_END统一登记
+    String batchId;
+    // 该流上正在后台发送的下载或升级文件，同一个流上的发送按请求顺序依次执行
+    CompletableFuture<Void> sending;
+
+    TransferStream(MessageChannel channel) {
+        this.channel = channel;
+    }
+
+    void abortUpload() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        ackedChunks = 0;
+        pendingEnd = null;
+        bundle = false;
+    }
+
+    // 没有进行中的上传和等待使用的协商结果，可以释放
+    boolean isIdle() {
+        return upload == null && pendingChecksum == null && !pendingCompression && !pendingBundle
+                && batchId == null && (sending == null || sending.isDone());
+    }
+}
@@ -0,0 +1,80 @@
+package cn.njit.server;
+
+import cn.njit.db.FileMetadataStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 目录上传的批量登记：同一批次的文件可能由多个连接上传，完成的文件先记在批次中，
+ * 客户端发送BATCH_END时在一个事务中写入数据库。客户端没有发送BATCH_END就断开时，
+ * 最后一个离开批次的连接负责登记，已保存的内容不会没有记录。
+ */
+class UploadBatches {
+    private final FileMetadataStore metadataStore;
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    UploadBatches(FileMetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    // 一个连接（或多路复用流）加入批次
+    void join(String batchId) {
+        batches.compute(batchId, (id, batch) -> {
+            Batch joined = batch == null ? new Batch() : batch;
+            joined.members++;
+            return joined;
+        });
+    }
+
+    // 记入批次，批次已登记或不存在时返回false，由调用方直接写入数据库
+    boolean add(String batchId, FileMetadataStore.FileRecord record) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) {
+            return false;
+        }
+        // 记录接收完成的时间，而不是登记的时间
+        record.uploadTime = FileMetadataStore.currentTime();
+        synchronized (batch) {
+            if (batch.committed) {
+                return false;
+            }
+            batch.records.add(record);
+        }
+        return true;
+    }
+
+    // 在一个事务中登记批次的所有文件，返回登记的文件数
+    int commit(String batchId) {
+        Batch batch = batches.remove(batchId);
+        if (batch == null) {
+            return 0;
+        }
+        List<FileMetadataStore.FileRecord> records;
+        synchronized (batch) {
+            batch.committed = true;
+            records = batch.records;
+        }
+        return records.isEmpty() ? 0 : metadataStore.insertFiles(records);
+    }
+
+    // 连接关闭或改用其他批次，最后一个离开的连接登记尚未登记的文件
+    void leave(String batchId) {
+        boolean[] last = {false};
+        batches.computeIfPresent(batchId, (id, batch) -> {
+            last[0] = --batch.members <= 0;
+            return batch;
+        });
+        if (last[0]) {
+            commit(batchId);
+        }
+    }
+
+    private static class Batch {
+        private final List<FileMetadataStore.FileRecord> records = new ArrayList<>();
+        private int members;
+        private boolean committed;
+    }
+}
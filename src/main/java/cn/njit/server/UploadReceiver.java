@@ -0,0 +1,511 @@
+package cn.njit.server;
+
+import cn.njit.base64.Base64Util;
+import cn.njit.delta.DeltaBase;
+import cn.njit.protocol.Message;
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.BlockCompressor;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+import cn.njit.util.MappedFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Checksum;
+import java.util.zip.Inflater;
+
+// 增量接收上传文件：每个块到达即解码写入上传目录中的临时文件，同时更新校验值和内容哈希，结束时校验后交给调用方存储
+public class UploadReceiver {
+    // 可续传上传的未完成数据目录（位于上传目录下）
+    public static final String PARTIAL_DIR = ".partial";
+    // 正在接收中的续传ID，防止同一传输被两个连接同时写入
+    private static final Set<String> ACTIVE_TRANSFERS = ConcurrentHashMap.newKeySet();
+    // 等待重传期间暂存的后续块的最大数量（不超过客户端的发送窗口）
+    private static final int MAX_PENDING_CHUNKS = 1024;
+
+    private final String fileName;
+    private final String transferId;
+    private final ParallelUpload parallel;
+    private final Path tempPath;
+    private final FileChannel fileChannel;
+    private final long offset;
+    private final OutputStream decodingOut;
+    private final CRC32Util.Algorithm algorithm;
+    // 随写入逐块更新的校验值，结束时不需要再读一遍文件
+    private final Checksum checksum;
+    // 内容哈希（SHA-256），用于按内容去重存储；并行上传的区间为null，由最后完成的区间计算整个文件
+    private final MessageDigest digest;
+    private String contentHash;
+    // 下一次写入的位置，数据按位置写入以支持多个连接写同一文件
+    private long position;
+    private long chunkCount = 0;
+    // 开始接收的时间，用于记录传输耗时和速度
+    private final long startNanos = System.nanoTime();
+    // 校验失败或缺失、等待客户端重传的块序号
+    private final Set<Long> missingChunks = new HashSet<>();
+    // 已收到或已请求重传的块序号的上界，之后到达的块与它之间的空缺需要请求重传
+    private long nextChunk = 0;
+    // 需要由调用方发送RESEND的块序号
+    private final List<Long> resendRequests = new ArrayList<>();
+    // 前面有块等待重传时先到达的块，重传的块写入后按顺序写入
+    private final TreeMap<Long, Message> pendingChunks = new TreeMap<>();
+    private boolean closed = false;
+    // 增量上传时复制块的来源，即服务端保存的旧版本
+    private DeltaBase deltaBase;
+    // 客户端协商了压缩时每个数据块先解压再写入，为null表示未压缩
+    private Inflater inflater;
+    private byte[] inflated;
+
+    public UploadReceiver(String uploadDir, String fileName) throws IOException {
+        this(uploadDir, fileName, null, CRC32Util.Algorithm.CRC32);
+    }
+
+    // transferId不为空时为可续传上传：数据写入.partial/<transferId>.part，连接中断后保留，重连后从已写入的位置继续
+    public UploadReceiver(String uploadDir, String fileName, String transferId,
+                          CRC32Util.Algorithm algorithm) throws IOException {
+        this.fileName = safeFileName(fileName);
+        this.parallel = null;
+        this.algorithm = algorithm;
+        this.checksum = CRC32Util.newChecksum(algorithm);
+        this.digest = ContentHash.newDigest();
+
+        Path dir = Paths.get(uploadDir);
+        Files.createDirectories(dir);
+
+        if (transferId == null) {
+            // 临时文件与存储目录在同一文件系统下，保证可以原子重命名
+            this.tempPath = Files.createTempFile(dir, "." + Paths.get(this.fileName).getFileName() + ".", ".part");
+        } else {
+            checkTransferId(transferId);
+            if (!ACTIVE_TRANSFERS.add(transferId)) {
+                throw new IOException("该文件正在由其他连接上传");
+            }
+            Path partialDir = dir.resolve(PARTIAL_DIR);
+            Files.createDirectories(partialDir);
+            this.tempPath = partialDir.resolve(transferId + ".part");
+        }
+        this.transferId = transferId;
+
+        try {
+            this.fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            releaseTransfer();
+            throw e;
+        }
+        try {
+            this.offset = fileChannel.size();
+            // 续传时校验值需要包含之前已保存的部分
+            updateChecksumFromFile(offset);
+        } catch (IOException e) {
+            fileChannel.close();
+            releaseTransfer();
+            throw e;
+        }
+        this.position = offset;
+        this.decodingOut = Base64Util.newDecodingStream(new PositionalOutputStream());
+    }
+
+    // 并行上传中的一个区间，从offset开始写入共享的临时文件
+    public UploadReceiver(ParallelUpload parallel, long offset, CRC32Util.Algorithm algorithm) {
+        this.fileName = parallel.getFileName();
+        this.algorithm = algorithm;
+        this.checksum = CRC32Util.newChecksum(algorithm);
+        this.digest = null;
+        this.transferId = null;
+        this.parallel = parallel;
+        this.tempPath = null;
+        this.fileChannel = parallel.getFileChannel();
+        this.offset = offset;
+        this.position = offset;
+        this.decodingOut = Base64Util.newDecodingStream(new PositionalOutputStream());
+    }
+
+    // 删除.partial中超过maxAgeMillis没有写入的续传和并行上传临时文件，返回删除的文件数；
+    // 正在接收的续传先占用其传输ID再删除，删除期间同一传输不能开始
+    static int sweepPartials(String uploadDir, long maxAgeMillis) {
+        Path partialDir = Paths.get(uploadDir).resolve(PARTIAL_DIR);
+        if (!Files.isDirectory(partialDir)) {
+            return 0;
+        }
+        long expiry = System.currentTimeMillis() - maxAgeMillis;
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(partialDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() >= expiry) {
+                        continue;
+                    }
+                    if (name.endsWith(".part")) {
+                        String transferId = name.substring(0, name.length() - ".part".length());
+                        if (!ACTIVE_TRANSFERS.add(transferId)) {
+                            continue;
+                        }
+                        try {
+                            Files.deleteIfExists(file);
+                        } finally {
+                            ACTIVE_TRANSFERS.remove(transferId);
+                        }
+                        count++;
+                    } else if (name.endsWith(".parallel")
+                            && !ParallelUpload.isActive(name.substring(0, name.length() - ".parallel".length()))) {
+                        Files.deleteIfExists(file);
+                        count++;
+                    }
+                } catch (IOException e) {
+                    System.err.println("清理临时文件失败: " + file + " " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("读取临时文件目录失败: " + partialDir + " " + e.getMessage());
+        }
+        return count;
+    }
+
+    // 文件名可以带相对目录（目录上传时保留目录结构），统一用/分隔并去掉空的和"."部分；
+    // 含有".."时与旧版本一样只保留最后的文件名
+    static String safeFileName(String fileName) throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (String part : fileName.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || ".".equals(part)) {
+                continue;
+            }
+            if ("..".equals(part)) {
+                name.setLength(0);
+                continue;
+            }
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        if (name.length() == 0) {
+            throw new IOException("无效的文件名: " + fileName);
+        }
+        return name.toString();
+    }
+
+    static void checkTransferId(String transferId) throws IOException {
+        if (!transferId.matches("[0-9A-Za-z-]{1,64}")) {
+            throw new IOException("无效的传输ID: " + transferId);
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    // 本次上传的数据块是否经过压缩（BlockCompressor格式）
+    public void setCompressed(boolean compressed) {
+        if (compressed && inflater == null) {
+            inflater = new Inflater();
+            inflated = new byte[MessageChannel.BINARY_BLOCK_SIZE];
+        }
+    }
+
+    // 写入一个Base64编码的文件块
+    public void writeChunk(String base64Chunk) throws IOException {
+        if (inflater != null) {
+            // 压缩的块各自编码，逐块解码后解压
+            byte[] block;
+            try {
+                block = Base64.getDecoder().decode(base64Chunk);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Base64数据格式错误: " + e.getMessage(), e);
+            }
+            writeBlock(block, 0, block.length);
+        } else {
+            decodingOut.write(base64Chunk.getBytes(StandardCharsets.US_ASCII));
+        }
+        chunkCount++;
+    }
+
+    // 写入一块原始文件数据（二进制模式）
+    public void write(byte[] data) throws IOException {
+        writeBlock(data, 0, data.length);
+        chunkCount++;
+    }
+
+    // 增量上传：之后的DELTA_COPY指令从base复制块，接收结束时关闭base
+    public void setDeltaBase(DeltaBase base) {
+        this.deltaBase = base;
+    }
+
+    // 复制旧版本从第index块开始的count块，写入位置、校验值和内容哈希与收到的数据一样按顺序更新
+    public void copyBlocks(long index, long count) throws IOException {
+        if (deltaBase == null) {
+            throw new IOException("不是增量上传");
+        }
+        deltaBase.copyTo(index, count, this::writeAt);
+    }
+
+    // 接收一个带校验的块（CHUNK帧）：校验失败返回false；需要客户端重传的块序号由takeResendRequests取出。
+    // 块按序号顺序写入文件，前面的块还在重传时先暂存，保证文件内容和整体校验值按顺序计算
+    public boolean acceptChunk(Message chunk) throws IOException {
+        long index = chunk.getChunkIndex();
+        if (!chunk.isChunkValid()) {
+            // 帧中的序号可能也已损坏，不能直接使用：它正是等待重传的块时再次请求该块，
+            // 否则按服务端自己的顺序请求下一个应到达的块（客户端按序号顺序发送）
+            long expected = missingChunks.contains(index) ? index : Math.max(nextChunk, chunkCount);
+            missingChunks.add(expected);
+            resendRequests.add(expected);
+            nextChunk = Math.max(nextChunk, expected + 1);
+            return false;
+        }
+        if (index < chunkCount || pendingChunks.containsKey(index)) {
+            // 重复的块
+            return true;
+        }
+        missingChunks.remove(index);
+        if (index > chunkCount) {
+            if (index - chunkCount > MAX_PENDING_CHUNKS || pendingChunks.size() >= MAX_PENDING_CHUNKS) {
+                throw new IOException("等待重传的数据块过多");
+            }
+            pendingChunks.put(index, chunk);
+            // 前面没有到达的块（丢失或序号损坏）都要求重传，否则结束时会一直等待
+            for (long i = Math.max(nextChunk, chunkCount); i < index; i++) {
+                if (!pendingChunks.containsKey(i) && missingChunks.add(i)) {
+                    resendRequests.add(i);
+                }
+            }
+            nextChunk = Math.max(nextChunk, index + 1);
+            return true;
+        }
+        writeChunkData(chunk);
+        Message next;
+        while ((next = pendingChunks.remove(chunkCount)) != null) {
+            writeChunkData(next);
+        }
+        nextChunk = Math.max(nextChunk, chunkCount);
+        return true;
+    }
+
+    // 取出需要客户端重传的块序号，每个序号只请求一次，重传的块再次损坏时重新请求
+    public List<Long> takeResendRequests() {
+        if (resendRequests.isEmpty()) {
+            return List.of();
+        }
+        List<Long> requests = new ArrayList<>(resendRequests);
+        resendRequests.clear();
+        return requests;
+    }
+
+    // 是否还有块在等待重传
+    public boolean hasMissingChunks() {
+        return !missingChunks.isEmpty() || !pendingChunks.isEmpty();
+    }
+
+    private void writeChunkData(Message chunk) throws IOException {
+        writeBlock(chunk.getPayload(), Message.CHUNK_HEADER_SIZE, chunk.getChunkLength());
+        chunkCount++;
+    }
+
+    // 续传的起始位置，即之前已保存的字节数
+    public long getOffset() {
+        return offset;
+    }
+
+    // 是否为并行上传中的一个区间
+    public boolean isRange() {
+        return parallel != null;
+    }
+
+    public CRC32Util.Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    // 从开始接收到现在的毫秒数，并行上传从第一个区间开始计算
+    public long getElapsedMillis() {
+        long start = parallel != null ? parallel.getStartNanos() : startNanos;
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // 本次接收写入的字节数（续传时不含之前已保存的部分，并行上传时只含本区间）
+    public long getReceivedBytes() {
+        return position - offset;
+    }
+
+    // 已接收数据的校验值（并行上传时只包含本区间）
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+
+    // 接收完成后的内容哈希，并行上传返回客户端声明并已校验的哈希（没有时为null）
+    public String getContentHash() {
+        return parallel != null ? parallel.getContentHash() : contentHash;
+    }
+
+    // 已接收的块数，用于累计确认
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    // 完成接收：关闭并返回接收完整的临时文件，之后由调用方负责存储或删除；并行上传的其他区间还未完成时返回null
+    public Path finish() throws IOException {
+        return finish(null);
+    }
+
+    // expectedChecksum不为空时先与接收时计算的校验值比较，不一致则丢弃已接收的数据
+    public Path finish(Long expectedChecksum) throws IOException {
+        closed = true;
+        if (parallel != null) {
+            try {
+                decodingOut.close();
+                if (hasMissingChunks()) {
+                    throw new IOException("还有数据块未重传");
+                }
+                verify(expectedChecksum);
+            } catch (IOException e) {
+                parallel.abortRange();
+                throw e;
+            } finally {
+                closeResources();
+            }
+            return parallel.completeRange(offset, position);
+        }
+        try {
+            decodingOut.close();
+            fileChannel.close();
+            if (hasMissingChunks()) {
+                throw new IOException("还有数据块未重传");
+            }
+            verify(expectedChecksum);
+            contentHash = ContentHash.hex(digest.digest());
+            return tempPath;
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        } finally {
+            closeResources();
+            releaseTransfer();
+        }
+    }
+
+    // 放弃接收：关闭临时文件，可续传的上传保留已接收的数据，其余删除
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeResources();
+        if (parallel != null) {
+            parallel.abortRange();
+            return;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {
+        }
+        releaseTransfer();
+        if (transferId != null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            System.err.println("删除临时文件失败: " + tempPath + " " + e.getMessage());
+        }
+    }
+
+    // 关闭解压器和增量上传的旧版本文件
+    private void closeResources() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if (deltaBase != null) {
+            try {
+                deltaBase.close();
+            } catch (IOException ignored) {
+            }
+            deltaBase = null;
+        }
+    }
+
+    private void verify(Long expectedChecksum) throws IOException {
+        if (expectedChecksum != null && expectedChecksum != checksum.getValue()) {
+            throw new IOException("校验和不匹配 (预期: " + Long.toHexString(expectedChecksum)
+                    + ", 实际: " + Long.toHexString(checksum.getValue()) + ")");
+        }
+    }
+
+    // 读取临时文件中已有的length个字节更新校验值，续传的大文件通过内存映射读取
+    private void updateChecksumFromFile(long length) throws IOException {
+        if (MappedFile.worthMapping(length)) {
+            MappedFile.forEach(fileChannel, 0, length, window -> {
+                checksum.update(window.duplicate());
+                digest.update(window);
+            });
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long read = 0;
+        while (read < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - read));
+            int len = fileChannel.read(buffer, read);
+            if (len < 0) {
+                break;
+            }
+            checksum.update(buffer.array(), 0, len);
+            digest.update(buffer.array(), 0, len);
+            read += len;
+        }
+    }
+
+    // 写入客户端发送的一块数据，压缩的块先解压
+    private void writeBlock(byte[] data, int off, int len) throws IOException {
+        if (inflater == null) {
+            writeAt(data, off, len);
+        } else {
+            writeAt(inflated, 0, BlockCompressor.decompress(inflater, data, off, len, inflated));
+        }
+    }
+
+    private void writeAt(byte[] data, int off, int len) throws IOException {
+        checksum.update(data, off, len);
+        if (digest != null) {
+            digest.update(data, off, len);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    private void releaseTransfer() {
+        if (transferId != null) {
+            ACTIVE_TRANSFERS.remove(transferId);
+        }
+    }
+
+    // 解码后的数据按当前位置写入文件
+    private class PositionalOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            writeAt(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeAt(b, off, len);
+        }
+    }
+}
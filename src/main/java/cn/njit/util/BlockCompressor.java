@@ -0,0 +1,134 @@
+package cn.njit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 按块压缩上传数据：每块单独用Deflater压缩，因此损坏的块可以单独重传，续传和并行上传按原始偏移计算也不受影响。
+ * 压缩后的块以一个标记字节开头，压缩后没有变小的块原样发送（STORED）。
+ */
+public class BlockCompressor {
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+    // 抽样：在文件开头、中间和结尾各取一段试压缩
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // 抽样压缩后至少要减少10%才值得压缩，zip、jar、png等已压缩的格式达不到
+    private static final double MAX_RATIO = 0.9;
+
+    private final Deflater deflater;
+    private byte[] buffer = new byte[0];
+
+    public BlockCompressor(int level) {
+        this.deflater = new Deflater(level);
+    }
+
+    // 压缩一块数据，结果（标记字节+数据）在getBuffer()中，返回结果长度
+    public int compress(byte[] data, int off, int len) {
+        if (buffer.length < len + 1) {
+            buffer = new byte[len + 1];
+        }
+        deflater.reset();
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < len) {
+            n += deflater.deflate(buffer, 1 + n, len - n);
+        }
+        if (deflater.finished() && n < len) {
+            buffer[0] = DEFLATED;
+            return n + 1;
+        }
+        buffer[0] = STORED;
+        System.arraycopy(data, off, buffer, 1, len);
+        return len + 1;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public void close() {
+        deflater.end();
+    }
+
+    // 抽样判断文件是否值得压缩
+    public static boolean worthCompressing(File file, int level) throws IOException {
+        long length = file.length();
+        if (length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(level);
+        byte[] sample = new byte[SAMPLE_SIZE];
+        byte[] out = new byte[SAMPLE_SIZE];
+        long total = 0;
+        long compressed = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long[] positions = {0, length / 2 - SAMPLE_SIZE / 2, length - SAMPLE_SIZE};
+            long last = -SAMPLE_SIZE;
+            for (long position : positions) {
+                position = Math.max(0, position);
+                if (position < last + SAMPLE_SIZE) {
+                    // 小文件的几段样本会重叠，只取一次
+                    continue;
+                }
+                last = position;
+                in.seek(position);
+                int len = in.read(sample, 0, (int) Math.min(SAMPLE_SIZE, length - position));
+                if (len <= 0) {
+                    break;
+                }
+                deflater.reset();
+                deflater.setInput(sample, 0, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(out);
+                }
+                total += len;
+            }
+        } finally {
+            deflater.end();
+        }
+        return total > 0 && compressed < total * MAX_RATIO;
+    }
+
+    // 解压一块到out，返回原始数据长度；解压结果超过out的长度时抛出异常，防止异常数据占用大量内存
+    public static int decompress(Inflater inflater, byte[] data, int off, int len, byte[] out) throws IOException {
+        if (len < 1) {
+            throw new IOException("压缩数据块为空");
+        }
+        if (data[off] == STORED) {
+            if (len - 1 > out.length) {
+                throw new IOException("数据块过大");
+            }
+            System.arraycopy(data, off + 1, out, 0, len - 1);
+            return len - 1;
+        }
+        if (data[off] != DEFLATED) {
+            throw new IOException("未知的压缩标记: " + data[off]);
+        }
+        inflater.reset();
+        inflater.setInput(data, off + 1, len - 1);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && !inflater.finished()) {
+                    if (n == out.length) {
+                        throw new IOException("解压后的数据块过大");
+                    }
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("压缩数据块不完整");
+                    }
+                }
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩数据格式错误: " + e.getMessage(), e);
+        }
+        return n;
+    }
+}
@@ -1,9 +1,43 @@
 package cn.njit.util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 public class CRC32Util {
+    // 传输校验支持的算法，CRC32C有硬件指令加速，xxHash64速度最快
+    public enum Algorithm {
+        CRC32, CRC32C, XXHASH64
+    }
+
+    // 创建增量校验对象，数据在发送或接收时逐块更新，不需要再单独读一遍文件
+    public static Checksum newChecksum(Algorithm algorithm) {
+        switch (algorithm) {
+            case CRC32C:
+                return new CRC32C();
+            case XXHASH64:
+                return new XxHash64();
+            default:
+                return new CRC32();
+        }
+    }
+
+    // 按名称（不区分大小写）查找算法，不支持时返回null
+    public static Algorithm parseAlgorithm(String name) {
+        for (Algorithm algorithm : Algorithm.values()) {
+            if (algorithm.name().equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
     // 计算字符串的CRC32值
     public static long calculate(String data) {
         CRC32 crc32 = new CRC32();
@@ -12,17 +46,29 @@ public class CRC32Util {
     }
 
     // 计算文件的CRC32值
-    public static long calculateFile(String filePath) throws Exception {
-        CRC32 crc32 = new CRC32();
+    public static long calculateFile(String filePath) throws IOException {
+        return calculateFile(filePath, Algorithm.CRC32);
+    }
+
+    // 按指定算法计算文件的校验值，大文件通过内存映射读取
+    public static long calculateFile(String filePath, Algorithm algorithm) throws IOException {
+        Checksum checksum = newChecksum(algorithm);
+        Path path = Paths.get(filePath);
+        if (MappedFile.worthMapping(Files.size(path))) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedFile.forEach(channel, 0, channel.size(), checksum::update);
+            }
+            return checksum.getValue();
+        }
         byte[] buffer = new byte[8192];
         try (FileInputStream fis = new FileInputStream(filePath);
              BufferedInputStream bis = new BufferedInputStream(fis)) {
             int len;
             while ((len = bis.read(buffer)) != -1) {
-                crc32.update(buffer, 0, len);
+                checksum.update(buffer, 0, len);
             }
         }
-        return crc32.getValue();
+        return checksum.getValue();
     }
 
     // 测试方法
@@ -0,0 +1,44 @@
+package cn.njit.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// 文件内容的SHA-256哈希，用于按内容去重存储（CRC等校验值冲突概率太高，不能作为内容标识）
+public class ContentHash {
+    private static final int HEX_LENGTH = 64;
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+    }
+
+    public static String hex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    public static String ofFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    // 是否为合法的哈希字符串，防止用作路径时越出存储目录
+    public static boolean isValid(String hash) {
+        return hash != null && hash.length() == HEX_LENGTH && hash.chars().allMatch(
+                c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+}
@@ -0,0 +1,122 @@
+package cn.njit.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多个小文件的打包格式，作为一次上传发送：开头是索引（魔数、文件数、每个文件的名称和大小），
+ * 之后按索引顺序依次是各文件的内容。整个包由上传本身的校验值保护，各文件不再单独校验。
+ */
+public class FileBundle {
+    private static final int MAGIC = 0x46424E44; // "FBND"
+    // 一个包中文件数的上限，防止损坏或恶意的索引占用过多内存
+    public static final int MAX_ENTRIES = 100000;
+
+    // 包中的一个文件
+    public static class Entry {
+        private final String name;
+        private final byte[] data;
+        private final long size;
+
+        // 打包时使用：文件内容已读入内存
+        public Entry(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+            this.size = data.length;
+        }
+
+        private Entry(String name, long size) {
+            this.name = name;
+            this.data = null;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    // 把已读入内存的小文件写成一个包
+    public static void write(List<Entry> entries, File target) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.size);
+            }
+            for (Entry entry : entries) {
+                out.write(entry.data);
+            }
+        }
+    }
+
+    // 按索引顺序读取包中各文件的内容
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final List<Entry> entries = new ArrayList<>();
+        private final byte[] buffer = new byte[8192];
+        private int next = 0;
+
+        public Reader(InputStream input) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(input));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("不是有效的文件包");
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ENTRIES) {
+                throw new IOException("文件包中的文件数无效: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                if (size < 0) {
+                    throw new IOException("文件包中的文件大小无效: " + name);
+                }
+                entries.add(new Entry(name, size));
+            }
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        // 把下一个文件的内容写入out，返回该文件，已读完时返回null
+        public Entry copyNext(OutputStream out) throws IOException {
+            if (next >= entries.size()) {
+                return null;
+            }
+            Entry entry = entries.get(next++);
+            long remaining = entry.size;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("文件包不完整: " + entry.name);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            return entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.njit.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 以只读内存映射的方式顺序读取大文件：文件按窗口分段映射，数据直接从页缓存读取，
+ * 不经过FileInputStream的本地缓冲区和Java堆上的读缓冲区，多GB的文件也只占用一个窗口的地址空间。
+ * 映射在缓冲区被回收时解除，每个窗口不超过256MB，未回收的映射只占用地址空间；
+ * 映射期间文件被其他进程截短时访问会出错，只用于本程序管理的文件。
+ */
+public class MappedFile {
+    // 小于该大小的文件映射的开销大于直接读取
+    public static final long MIN_SIZE = 1024 * 1024;
+    // 每次映射的最大长度，单个MappedByteBuffer不能超过2GB
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    public interface WindowHandler {
+        void accept(ByteBuffer window) throws IOException;
+    }
+
+    public interface BlockHandler {
+        void accept(byte[] data, int len) throws IOException;
+    }
+
+    public static boolean worthMapping(long length) {
+        return length >= MIN_SIZE;
+    }
+
+    // 把[position, position + length)依次映射后交给handler，超出文件末尾的部分忽略
+    public static void forEach(FileChannel channel, long position, long length, WindowHandler handler)
+            throws IOException {
+        forEach(channel, position, length, 0, handler);
+    }
+
+    // align大于0时除最后一段外每段长度都是align的整数倍，按块处理时数据块不会跨越两个窗口
+    private static void forEach(FileChannel channel, long position, long length, int align, WindowHandler handler)
+            throws IOException {
+        long window = align > 0 ? Math.max(align, WINDOW_SIZE / align * align) : WINDOW_SIZE;
+        long end = Math.min(channel.size(), position + length);
+        while (position < end) {
+            long size = Math.min(window, end - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            handler.accept(buffer);
+            position += size;
+        }
+    }
+
+    // 按buffer的大小逐块读取，每块（最后一块可能较短）复制到buffer后交给handler，用于需要字节数组的发送路径
+    public static void forEachBlock(FileChannel channel, long position, long length, byte[] buffer,
+                                    BlockHandler handler) throws IOException {
+        forEach(channel, position, length, buffer.length, window -> {
+            while (window.hasRemaining()) {
+                int len = Math.min(buffer.length, window.remaining());
+                window.get(buffer, 0, len);
+                handler.accept(buffer, len);
+            }
+        });
+    }
+}
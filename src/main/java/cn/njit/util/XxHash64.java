@@ -0,0 +1,133 @@
+package cn.njit.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+// xxHash64（种子为0）的增量实现，非加密哈希，速度远高于CRC32，用于大文件完整性校验
+public final class XxHash64 implements Checksum {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+    // 不足32字节的数据暂存，凑满一组后再处理
+    private final byte[] buffer = new byte[32];
+    private int bufferSize;
+
+    public XxHash64() {
+        reset();
+    }
+
+    @Override
+    public void update(int b) {
+        update(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        totalLength += len;
+
+        if (bufferSize + len < 32) {
+            System.arraycopy(b, off, buffer, bufferSize, len);
+            bufferSize += len;
+            return;
+        }
+
+        int end = off + len;
+        if (bufferSize > 0) {
+            int fill = 32 - bufferSize;
+            System.arraycopy(b, off, buffer, bufferSize, fill);
+            processStripe(buffer, 0);
+            off += fill;
+            bufferSize = 0;
+        }
+        while (off + 32 <= end) {
+            processStripe(b, off);
+            off += 32;
+        }
+        if (off < end) {
+            bufferSize = end - off;
+            System.arraycopy(b, off, buffer, 0, bufferSize);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME64_5;
+        }
+        h += totalLength;
+
+        int i = 0;
+        while (i + 8 <= bufferSize) {
+            h ^= round(0, (long) LONG_LE.get(buffer, i));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            i += 8;
+        }
+        if (i + 4 <= bufferSize) {
+            h ^= ((int) INT_LE.get(buffer, i) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            i += 4;
+        }
+        while (i < bufferSize) {
+            h ^= (buffer[i] & 0xFFL) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+            i++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    @Override
+    public void reset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        totalLength = 0;
+        bufferSize = 0;
+    }
+
+    private void processStripe(byte[] b, int off) {
+        v1 = round(v1, (long) LONG_LE.get(b, off));
+        v2 = round(v2, (long) LONG_LE.get(b, off + 8));
+        v3 = round(v3, (long) LONG_LE.get(b, off + 16));
+        v4 = round(v4, (long) LONG_LE.get(b, off + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+}
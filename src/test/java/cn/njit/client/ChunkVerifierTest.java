@@ -0,0 +1,100 @@
+package cn.njit.client;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkVerifierTest {
+    private static final int BLOCK_SIZE = 1000;
+
+    private final byte[] data = random(BLOCK_SIZE * 4 + 250);
+
+    @Test
+    public void intactDataHasNoBadChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkVerifier verifier = new ChunkVerifier(out, sums(data));
+        // 按与块大小无关的长度分段写入，块的边界落在写入中间
+        for (int off = 0; off < data.length; off += 333) {
+            verifier.write(data, off, Math.min(333, data.length - off));
+        }
+        assertEquals(Collections.emptyList(), verifier.finish());
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void corruptedChunksAreReported() throws IOException {
+        String sums = sums(data);
+        byte[] received = data.clone();
+        received[10] ^= 1;
+        received[BLOCK_SIZE * 4 + 5] ^= 1;
+        ChunkVerifier verifier = new ChunkVerifier(new ByteArrayOutputStream(), sums);
+        verifier.write(received, 0, received.length);
+        assertEquals(Arrays.asList(0L, 4L), verifier.finish());
+
+        // 补取的块按服务端公布的值校验
+        assertTrue(verifier.matches(0, data, 0, BLOCK_SIZE));
+        assertFalse(verifier.matches(0, received, 0, BLOCK_SIZE));
+        assertTrue(verifier.matches(4, data, BLOCK_SIZE * 4, 250));
+        assertFalse(verifier.matches(5, data, 0, BLOCK_SIZE));
+        assertFalse(verifier.matches(-1, data, 0, BLOCK_SIZE));
+    }
+
+    @Test
+    public void missingAndExtraChunksAreReported() throws IOException {
+        ChunkVerifier shortDownload = new ChunkVerifier(new ByteArrayOutputStream(), sums(data));
+        shortDownload.write(data, 0, BLOCK_SIZE * 2 + 1);
+        List<Long> bad = shortDownload.finish();
+        assertEquals(Arrays.asList(2L, 3L, 4L), bad);
+
+        ChunkVerifier longDownload = new ChunkVerifier(new ByteArrayOutputStream(), sums(Arrays.copyOf(data, BLOCK_SIZE)));
+        longDownload.write(data, 0, BLOCK_SIZE + 1);
+        assertEquals(Collections.singletonList(1L), longDownload.finish());
+    }
+
+    @Test
+    public void emptyFile() {
+        ChunkVerifier verifier = new ChunkVerifier(new ByteArrayOutputStream(), BLOCK_SIZE + ":");
+        assertEquals(Collections.emptyList(), verifier.finish());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBlockSizeIsRejected() {
+        new ChunkVerifier(new ByteArrayOutputStream(), "0:");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedSumIsRejected() {
+        new ChunkVerifier(new ByteArrayOutputStream(), BLOCK_SIZE + ":zz");
+    }
+
+    // 按服务端CHUNK_SUMS的格式生成每块的CRC32C
+    private static String sums(byte[] data) {
+        StringBuilder text = new StringBuilder().append(BLOCK_SIZE).append(':');
+        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+            CRC32C crc = new CRC32C();
+            crc.update(data, off, Math.min(BLOCK_SIZE, data.length - off));
+            if (off > 0) {
+                text.append(',');
+            }
+            text.append(Long.toHexString(crc.getValue()));
+        }
+        return text.toString();
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(5).nextBytes(data);
+        return data;
+    }
+}
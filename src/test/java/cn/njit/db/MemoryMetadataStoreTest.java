@@ -0,0 +1,120 @@
+package cn.njit.db;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryMetadataStoreTest {
+    private static final int RECORDS = 2500;
+
+    private final MemoryMetadataStore store = new MemoryMetadataStore();
+
+    @Before
+    public void setUp() {
+        List<FileMetadataStore.FileRecord> batch = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            FileMetadataStore.FileRecord record = new FileMetadataStore.FileRecord();
+            record.filename = (i % 2 == 0 ? "even-" : "odd-") + i;
+            record.contentHash = "hash" + i;
+            record.uploadTime = String.format("2024-01-01 00:%02d:%02d", i / 60 % 60, i % 60);
+            record.fileSize = i;
+            batch.add(record);
+        }
+        assertEquals(RECORDS, store.insertFiles(batch));
+    }
+
+    @Test
+    public void pagesCoverAllRecordsInIdOrder() {
+        FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+        query.limit = FileMetadataStore.MAX_PAGE_SIZE;
+        long expectedId = 1;
+        int pages = 0;
+        List<FileMetadataStore.FileRecord> page;
+        while (!(page = store.queryFiles(query)).isEmpty()) {
+            for (FileMetadataStore.FileRecord record : page) {
+                assertEquals(expectedId++, record.id);
+            }
+            // 键集分页：下一页从本页最后一条记录的ID之后开始
+            query.afterId = page.get(page.size() - 1).id;
+            pages++;
+        }
+        assertEquals(RECORDS + 1, expectedId);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void pageSizeIsClamped() {
+        FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+        assertEquals(FileMetadataStore.DEFAULT_PAGE_SIZE, store.queryFiles(query).size());
+        query.limit = RECORDS;
+        assertEquals(FileMetadataStore.MAX_PAGE_SIZE, store.queryFiles(query).size());
+        query.limit = 0;
+        assertEquals(1, store.queryFiles(query).size());
+        query.limit = 10;
+        query.afterId = RECORDS - 3;
+        assertEquals(3, store.queryFiles(query).size());
+    }
+
+    @Test
+    public void filtersApplyAcrossPages() {
+        FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+        query.filenamePrefix = "odd-";
+        query.limit = 7;
+        int count = 0;
+        List<FileMetadataStore.FileRecord> page;
+        while (!(page = store.queryFiles(query)).isEmpty()) {
+            for (FileMetadataStore.FileRecord record : page) {
+                assertTrue(record.filename.startsWith("odd-"));
+                count++;
+            }
+            query.afterId = page.get(page.size() - 1).id;
+        }
+        assertEquals(RECORDS / 2, count);
+
+        FileMetadataStore.FileQuery range = new FileMetadataStore.FileQuery();
+        range.uploadedFrom = "2024-01-01 00:01:00";
+        range.uploadedTo = "2024-01-01 00:02:00";
+        range.limit = FileMetadataStore.MAX_PAGE_SIZE;
+        // 每秒一条记录，第二分钟内共60条
+        assertEquals(60, store.queryFiles(range).size());
+    }
+
+    @Test
+    public void iterateAndStatsIgnorePageSize() {
+        FileMetadataStore.FileQuery query = new FileMetadataStore.FileQuery();
+        query.afterId = 500;
+        int count = 0;
+        for (Iterator<FileMetadataStore.FileRecord> it = store.iterateFiles(query); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(RECORDS - 500, count);
+
+        // 统计不受afterId和条数限制
+        FileMetadataStore.UploadStats stats = store.queryStats(query);
+        assertEquals(RECORDS, stats.fileCount);
+        assertEquals((long) RECORDS * (RECORDS - 1) / 2, stats.totalBytes);
+        assertEquals(0, stats.transferCount);
+    }
+
+    @Test
+    public void latestContentHashByName() {
+        assertEquals("hash7", store.findContentHash("odd-7"));
+        FileMetadataStore.FileRecord record = new FileMetadataStore.FileRecord();
+        record.filename = "odd-7";
+        record.contentHash = "newer";
+        store.insertFileAsync(record).join();
+        // 保存的是副本，之后修改传入的对象不影响已保存的记录
+        record.contentHash = "changed";
+        assertEquals("newer", store.findContentHash("odd-7"));
+        assertNull(store.findContentHash("missing"));
+        store.insertFile("no-hash", "说明", null);
+        assertNull(store.findContentHash("no-hash"));
+    }
+}
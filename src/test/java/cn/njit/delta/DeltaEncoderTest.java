@@ -0,0 +1,131 @@
+package cn.njit.delta;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaEncoderTest {
+    private static final int BLOCK_SIZE = BlockSignature.MIN_BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rollMatchesRecalculation() {
+        byte[] data = random(10_000, 1);
+        int window = 700;
+        RollingChecksum rolling = new RollingChecksum();
+        rolling.reset(data, 0, window);
+        for (int start = 1; start + window <= data.length; start++) {
+            rolling.roll(data[start - 1], data[start + window - 1]);
+            assertEquals("位置 " + start, RollingChecksum.of(data, start, window), rolling.getValue());
+        }
+    }
+
+    @Test
+    public void identicalFileIsOneCopy() throws IOException {
+        byte[] old = random(BLOCK_SIZE * 20 + 123, 2);
+        Result result = roundTrip(old, old);
+        assertEquals(0, result.encoder.getLiteralBytes());
+        assertEquals(old.length, result.encoder.getCopiedBytes());
+        assertEquals(1, result.copies);
+    }
+
+    @Test
+    public void insertedAndDeletedBytesAreLiterals() throws IOException {
+        byte[] old = random(BLOCK_SIZE * 40, 3);
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        // 开头插入数据、中间删除一段、末尾追加不足一块的数据
+        changed.write(random(100, 4), 0, 100);
+        changed.write(old, 0, BLOCK_SIZE * 10);
+        changed.write(old, BLOCK_SIZE * 12 + 7, old.length - BLOCK_SIZE * 12 - 7);
+        changed.write(random(300, 5), 0, 300);
+        byte[] data = changed.toByteArray();
+
+        Result result = roundTrip(old, data);
+        assertTrue(result.encoder.getLiteralBytes() < BLOCK_SIZE * 2 + 400);
+        assertEquals(data.length, result.encoder.getLiteralBytes() + result.encoder.getCopiedBytes());
+    }
+
+    @Test
+    public void unrelatedAndEmptyFiles() throws IOException {
+        byte[] old = random(BLOCK_SIZE * 5, 6);
+        byte[] data = random(BLOCK_SIZE * 3 + 17, 7);
+        assertEquals(data.length, roundTrip(old, data).encoder.getLiteralBytes());
+        assertEquals(0, roundTrip(old, new byte[0]).encoder.getLiteralBytes());
+        assertEquals(data.length, roundTrip(new byte[0], data).encoder.getLiteralBytes());
+    }
+
+    @Test
+    public void signatureFormatRoundTrip() throws IOException {
+        Path file = write("sig.bin", random(BLOCK_SIZE * 3 + 1, 8));
+        BlockSignature signature = BlockSignature.of(file, BLOCK_SIZE);
+        BlockSignature parsed = BlockSignature.parse(signature.format());
+        assertEquals(signature.getBlockCount(), parsed.getBlockCount());
+        assertEquals(signature.getLength(), parsed.getLength());
+        for (int i = 0; i < signature.getBlockCount(); i++) {
+            assertEquals(signature.getWeak(i), parsed.getWeak(i));
+            assertEquals(signature.getStrong(i), parsed.getStrong(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void copyBeyondBaseIsRejected() throws IOException {
+        Path file = write("base.bin", random(BLOCK_SIZE * 2, 9));
+        try (DeltaBase base = new DeltaBase(file, BLOCK_SIZE)) {
+            base.copyTo(1, 2, (data, off, len) -> { });
+        }
+    }
+
+    private static class Result {
+        DeltaEncoder encoder;
+        int copies;
+    }
+
+    // 按旧文件编码新文件，再用旧文件和编码结果重组，重组结果必须与新文件相同
+    private Result roundTrip(byte[] old, byte[] data) throws IOException {
+        Path oldFile = write("old.bin", old);
+        Result result = new Result();
+        result.encoder = new DeltaEncoder(BlockSignature.of(oldFile, BLOCK_SIZE));
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        try (DeltaBase base = new DeltaBase(oldFile, BLOCK_SIZE)) {
+            result.encoder.encode(new ByteArrayInputStream(data), new DeltaEncoder.Sink() {
+                @Override
+                public void literal(byte[] bytes, int off, int len) {
+                    rebuilt.write(bytes, off, len);
+                }
+
+                @Override
+                public void copy(long index, long count) throws IOException {
+                    result.copies++;
+                    base.copyTo(index, count, rebuilt::write);
+                }
+            });
+        }
+        assertArrayEquals(data, rebuilt.toByteArray());
+        return result;
+    }
+
+    private Path write(String name, byte[] data) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, data);
+        return file;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
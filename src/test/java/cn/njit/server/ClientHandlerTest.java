@@ -0,0 +1,55 @@
+package cn.njit.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClientHandlerTest {
+    private static final long SIZE = 100;
+
+    @Test
+    public void wholeFile() {
+        assertRange(0, SIZE, "");
+        assertRange(0, SIZE, "0-");
+        assertRange(0, 0, "", 0);
+        // 空文件无论范围都应答长度0
+        assertRange(0, 0, "5-9", 0);
+    }
+
+    @Test
+    public void closedAndOpenRanges() {
+        assertRange(0, 1, "0-0");
+        assertRange(10, 20, "10-19");
+        assertRange(40, SIZE, "40-");
+        assertRange(99, SIZE, "99-99");
+        // 终点超出文件时截到文件末尾
+        assertRange(90, SIZE, "90-1000");
+    }
+
+    @Test
+    public void suffixRanges() {
+        assertRange(90, SIZE, "-10");
+        assertRange(0, SIZE, "-1000");
+    }
+
+    @Test
+    public void invalidRanges() {
+        assertNull(ClientHandler.parseRange("100-", SIZE));
+        assertNull(ClientHandler.parseRange("20-10", SIZE));
+        assertNull(ClientHandler.parseRange("-0", SIZE));
+        assertNull(ClientHandler.parseRange("--5", SIZE));
+        assertNull(ClientHandler.parseRange("-", SIZE));
+        assertNull(ClientHandler.parseRange("10", SIZE));
+        assertNull(ClientHandler.parseRange("a-b", SIZE));
+        assertNull(ClientHandler.parseRange("99999999999999999999-", SIZE));
+    }
+
+    private static void assertRange(long start, long end, String range) {
+        assertRange(start, end, range, SIZE);
+    }
+
+    private static void assertRange(long start, long end, String range, long size) {
+        assertArrayEquals(range, new long[]{start, end}, ClientHandler.parseRange(range, size));
+    }
+}
@@ -0,0 +1,204 @@
+package cn.njit.server;
+
+import cn.njit.protocol.MessageChannel;
+import cn.njit.util.CRC32Util;
+import cn.njit.util.ContentHash;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelUploadTest {
+    private static final int SIZE = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = random();
+    private final String transferId = UUID.randomUUID().toString();
+
+    @Test
+    public void rangesCompleteFile() throws IOException {
+        ParallelUpload first = join(2, null, null);
+        ParallelUpload second = join(2, null, null);
+        write(second, 1000, SIZE);
+        write(first, 0, 1000);
+        assertNull(second.completeRange(1000, SIZE));
+        Path file = first.completeRange(0, 1000);
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void wholeFileChecksumIsVerified() throws IOException {
+        Files.write(folder.getRoot().toPath().resolve("src.bin"), data);
+        long crc = CRC32Util.calculateFile(folder.getRoot().toPath().resolve("src.bin").toString());
+        ParallelUpload upload = join(1, crc, null);
+        write(upload, 0, SIZE);
+        Path file = upload.completeRange(0, SIZE);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        // 重组后的文件由调用方存储
+        Files.delete(file);
+
+        String hash = ContentHash.hex(ContentHash.newDigest().digest(data));
+        ParallelUpload wrong = ParallelUpload.join(uploadDir(), UUID.randomUUID().toString(), "p.bin", SIZE, 1,
+                crc + 1, hash);
+        write(wrong, 0, SIZE);
+        assertFails(wrong, 0, SIZE);
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void abortedRangeFailsLaterCompletion() throws IOException {
+        ParallelUpload first = join(2, null, null);
+        ParallelUpload second = join(2, null, null);
+        write(first, 0, 500);
+        first.abortRange();
+        // 中断的区间已使整个上传失败，之后完成的区间不能存储
+        write(second, 1000, SIZE);
+        assertFails(second, 1000, SIZE);
+        assertNoTempFiles();
+        // 临时文件清理后同一传输ID可以重新开始
+        ParallelUpload retry = join(1, null, null);
+        write(retry, 0, SIZE);
+        assertArrayEquals(data, Files.readAllBytes(retry.completeRange(0, SIZE)));
+    }
+
+    @Test
+    public void abortAfterCompletedRangeCleansUp() throws IOException {
+        ParallelUpload first = join(2, null, null);
+        ParallelUpload second = join(2, null, null);
+        write(first, 0, 1000);
+        assertNull(first.completeRange(0, 1000));
+        second.abortRange();
+        assertNoTempFiles();
+        try {
+            join(2, null, null).abortRange();
+        } catch (IOException e) {
+            fail("清理后应能重新开始: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void overlappingRangesDoNotCompleteFile() throws IOException {
+        ParallelUpload first = join(2, null, null);
+        ParallelUpload second = join(2, null, null);
+        write(first, 0, 1000);
+        write(second, 0, 1000);
+        assertNull(first.completeRange(0, 1000));
+        assertFails(second, 0, 1000);
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void rangeOutsideFileFails() throws IOException {
+        ParallelUpload upload = join(1, null, null);
+        assertFails(upload, 1000, SIZE + 1);
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void extraRangeIsRejected() throws IOException {
+        ParallelUpload upload = join(1, null, null);
+        try {
+            join(1, null, null);
+            fail("区间数超过声明的连接数时应拒绝");
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+        upload.abortRange();
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void invalidDeclarationCreatesNothing() throws IOException {
+        assertJoinRejected(0, SIZE, null);
+        assertJoinRejected(MessageChannel.MAX_PARALLEL_STREAMS + 1, SIZE, null);
+        assertJoinRejected(1, -1, null);
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve(UploadReceiver.PARTIAL_DIR)));
+        // 被拒绝的请求不占用传输ID
+        ParallelUpload upload = join(1, null, null);
+        write(upload, 0, SIZE);
+        assertArrayEquals(data, Files.readAllBytes(upload.completeRange(0, SIZE)));
+    }
+
+    @Test
+    public void mismatchedJoinerIsRejected() throws IOException {
+        ParallelUpload first = join(2, null, null);
+        assertJoinRejected(3, SIZE, null);
+        assertJoinRejected(2, SIZE + 1, null);
+        assertJoinRejected(2, SIZE, 12345L);
+        try {
+            ParallelUpload.join(uploadDir(), transferId, "other.bin", SIZE, 2, null, null);
+            fail("文件名不一致的区间应被拒绝");
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+        // 被拒绝的区间不影响已开始的上传
+        ParallelUpload second = join(2, null, null);
+        write(first, 0, 1000);
+        write(second, 1000, SIZE);
+        assertNull(first.completeRange(0, 1000));
+        assertArrayEquals(data, Files.readAllBytes(second.completeRange(1000, SIZE)));
+    }
+
+    private void assertJoinRejected(int streams, long size, Long checksum) {
+        try {
+            ParallelUpload.join(uploadDir(), transferId, "p.bin", size, streams, checksum, null);
+            fail("无效的并行上传请求应被拒绝: " + streams + " " + size + " " + checksum);
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+    }
+
+    private ParallelUpload join(int streams, Long checksum, String contentHash) throws IOException {
+        return ParallelUpload.join(uploadDir(), transferId, "p.bin", SIZE, streams, checksum, contentHash);
+    }
+
+    private String uploadDir() {
+        return folder.getRoot().getPath();
+    }
+
+    private void write(ParallelUpload upload, int start, int end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, start, end - start);
+        long position = start;
+        while (buffer.hasRemaining()) {
+            position += upload.getFileChannel().write(buffer, position);
+        }
+    }
+
+    private static void assertFails(ParallelUpload upload, long start, long end) {
+        try {
+            upload.completeRange(start, end);
+            fail("并行上传应失败");
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+    }
+
+    private void assertNoTempFiles() throws IOException {
+        Path partial = folder.getRoot().toPath().resolve(UploadReceiver.PARTIAL_DIR);
+        try (var files = Files.list(partial)) {
+            assertFalse(Arrays.toString(partial.toFile().list()), files.findAny().isPresent());
+        }
+        assertTrue(Files.isDirectory(partial));
+    }
+
+    private static byte[] random() {
+        byte[] data = new byte[SIZE];
+        new Random(11).nextBytes(data);
+        return data;
+    }
+}
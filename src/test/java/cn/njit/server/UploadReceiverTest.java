@@ -0,0 +1,174 @@
+package cn.njit.server;
+
+import cn.njit.protocol.Message;
+import cn.njit.util.CRC32Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadReceiverTest {
+    private static final int BLOCK_SIZE = 100;
+    private static final int BLOCKS = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = random();
+    private UploadReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new UploadReceiver(folder.getRoot().getPath(), "chunks.bin");
+    }
+
+    @After
+    public void tearDown() {
+        receiver.abort();
+    }
+
+    @Test
+    public void chunksInOrder() throws IOException {
+        for (int i = 0; i < BLOCKS; i++) {
+            assertTrue(receiver.acceptChunk(chunk(i)));
+        }
+        assertEquals(Collections.emptyList(), receiver.takeResendRequests());
+        assertFinished();
+    }
+
+    @Test
+    public void corruptedChunkIsRequestedAgain() throws IOException {
+        assertTrue(receiver.acceptChunk(chunk(0)));
+        Message bad = chunk(1);
+        bad.getPayload()[Message.CHUNK_HEADER_SIZE + 5] ^= 1;
+        assertFalse(receiver.acceptChunk(bad));
+        assertEquals(List.of(1L), receiver.takeResendRequests());
+        for (int i = 2; i < BLOCKS; i++) {
+            assertTrue(receiver.acceptChunk(chunk(i)));
+        }
+        // 块1已经请求过，后面的块到达时不重复请求
+        assertEquals(Collections.emptyList(), receiver.takeResendRequests());
+        assertTrue(receiver.hasMissingChunks());
+        assertTrue(receiver.acceptChunk(chunk(1)));
+        assertFinished();
+    }
+
+    @Test
+    public void corruptedIndexFailsCheck() throws IOException {
+        assertTrue(receiver.acceptChunk(chunk(0)));
+        // 数据完好但块序号损坏，不能当作重复的块丢弃或按错误的序号暂存
+        Message bad = chunk(2);
+        bad.getPayload()[7] ^= 2;
+        assertEquals(0, bad.getChunkIndex());
+        assertFalse(receiver.acceptChunk(bad));
+    }
+
+    @Test
+    public void corruptedFrameRequestsExpectedChunk() throws IOException {
+        assertTrue(receiver.acceptChunk(chunk(0)));
+        // 块序号和数据都损坏：不按帧中的序号请求，而是请求按顺序应到达的块1
+        Message bad = chunk(1);
+        ByteBuffer.wrap(bad.getPayload()).putLong(0, 99999);
+        assertFalse(receiver.acceptChunk(bad));
+        assertEquals(List.of(1L), receiver.takeResendRequests());
+        // 块2正常到达，块1已请求过；块1的重传再次损坏时按等待中的序号再次请求
+        assertTrue(receiver.acceptChunk(chunk(2)));
+        assertEquals(Collections.emptyList(), receiver.takeResendRequests());
+        bad = chunk(1);
+        bad.getPayload()[Message.CHUNK_HEADER_SIZE] ^= 1;
+        assertFalse(receiver.acceptChunk(bad));
+        assertEquals(List.of(1L), receiver.takeResendRequests());
+        for (int i : new int[]{3, 4, 5, 1}) {
+            assertTrue(receiver.acceptChunk(chunk(i)));
+        }
+        assertFinished();
+    }
+
+    @Test
+    public void gapIsRequested() throws IOException {
+        assertTrue(receiver.acceptChunk(chunk(0)));
+        assertTrue(receiver.acceptChunk(chunk(3)));
+        assertEquals(Arrays.asList(1L, 2L), receiver.takeResendRequests());
+        assertTrue(receiver.acceptChunk(chunk(5)));
+        assertEquals(List.of(4L), receiver.takeResendRequests());
+        for (int i : new int[]{2, 4, 1}) {
+            assertTrue(receiver.acceptChunk(chunk(i)));
+        }
+        assertEquals(Collections.emptyList(), receiver.takeResendRequests());
+        assertFinished();
+    }
+
+    @Test(expected = IOException.class)
+    public void chunkTooFarAheadIsRejected() throws IOException {
+        receiver.acceptChunk(chunk(1_000_000, new byte[1]));
+    }
+
+    @Test
+    public void expiredPartialsAreSwept() throws IOException {
+        Path partial = folder.getRoot().toPath().resolve(UploadReceiver.PARTIAL_DIR);
+        Files.createDirectories(partial);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(48));
+        Path expired = Files.write(partial.resolve("expired.part"), new byte[10]);
+        Files.setLastModifiedTime(expired, old);
+        Path parallel = Files.write(partial.resolve("stale.parallel"), new byte[10]);
+        Files.setLastModifiedTime(parallel, old);
+        Path recent = Files.write(partial.resolve("recent.part"), new byte[10]);
+        // 正在续传的文件即使很久没有写入也不删除
+        UploadReceiver active = new UploadReceiver(folder.getRoot().getPath(), "a.bin", "active",
+                CRC32Util.Algorithm.CRC32);
+        Files.setLastModifiedTime(partial.resolve("active.part"), old);
+        try {
+            assertEquals(2, UploadReceiver.sweepPartials(folder.getRoot().getPath(), TimeUnit.HOURS.toMillis(24)));
+            assertFalse(Files.exists(expired));
+            assertFalse(Files.exists(parallel));
+            assertTrue(Files.exists(recent));
+            assertTrue(Files.exists(partial.resolve("active.part")));
+        } finally {
+            active.abort();
+        }
+    }
+
+    private void assertFinished() throws IOException {
+        assertFalse(receiver.hasMissingChunks());
+        assertArrayEquals(data, Files.readAllBytes(receiver.finish()));
+    }
+
+    private Message chunk(int index) {
+        return chunk(index, Arrays.copyOfRange(data, index * BLOCK_SIZE, (index + 1) * BLOCK_SIZE));
+    }
+
+    // 按MessageChannel.sendChunk的格式构造CHUNK帧：块序号、块序号和数据的CRC32C、数据
+    private static Message chunk(long index, byte[] block) {
+        ByteBuffer payload = ByteBuffer.allocate(Message.CHUNK_HEADER_SIZE + block.length);
+        payload.putLong(index);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.array(), 0, Long.BYTES);
+        crc.update(block);
+        payload.putInt((int) crc.getValue()).put(block);
+        return Message.frame(Message.CHUNK, payload.array());
+    }
+
+    private static byte[] random() {
+        byte[] data = new byte[BLOCK_SIZE * BLOCKS];
+        new Random(13).nextBytes(data);
+        return data;
+    }
+}
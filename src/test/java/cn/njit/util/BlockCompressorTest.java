@@ -0,0 +1,96 @@
+package cn.njit.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockCompressorTest {
+    private final BlockCompressor compressor = new BlockCompressor(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+
+    @After
+    public void tearDown() {
+        compressor.close();
+        inflater.end();
+    }
+
+    @Test
+    public void compressibleBlockIsDeflated() throws IOException {
+        byte[] data = "欢迎来到侏罗纪世界！".repeat(500).getBytes(StandardCharsets.UTF_8);
+        int len = compressor.compress(data, 0, data.length);
+        assertEquals(BlockCompressor.DEFLATED, compressor.getBuffer()[0]);
+        assertTrue(len < data.length);
+        assertArrayEquals(data, decompress(compressor.getBuffer(), len, data.length));
+    }
+
+    @Test
+    public void randomBlockIsStored() throws IOException {
+        byte[] data = new byte[8192];
+        new Random(1).nextBytes(data);
+        int len = compressor.compress(data, 0, data.length);
+        assertEquals(BlockCompressor.STORED, compressor.getBuffer()[0]);
+        assertEquals(data.length + 1, len);
+        assertArrayEquals(data, decompress(compressor.getBuffer(), len, data.length));
+    }
+
+    @Test
+    public void emptyBlock() throws IOException {
+        int len = compressor.compress(new byte[0], 0, 0);
+        assertEquals(0, decompress(compressor.getBuffer(), len, 16).length);
+    }
+
+    @Test
+    public void deflatedBlockLargerThanOutputIsRejected() {
+        byte[] data = new byte[64 * 1024];
+        int len = compressor.compress(data, 0, data.length);
+        assertEquals(BlockCompressor.DEFLATED, compressor.getBuffer()[0]);
+        assertRejected(compressor.getBuffer(), len, data.length - 1);
+    }
+
+    @Test
+    public void storedBlockLargerThanOutputIsRejected() {
+        byte[] data = new byte[100];
+        data[0] = BlockCompressor.STORED;
+        assertRejected(data, data.length, 98);
+    }
+
+    @Test
+    public void malformedBlocksAreRejected() {
+        assertRejected(new byte[0], 0, 16);
+        // 未知的标记字节
+        assertRejected(new byte[]{7, 1, 2, 3}, 4, 16);
+        // 不是Deflate格式的数据
+        assertRejected(new byte[]{BlockCompressor.DEFLATED, (byte) 0xff, (byte) 0xff, 0x12}, 4, 16);
+
+        byte[] data = "欢迎来到侏罗纪世界！".repeat(100).getBytes(StandardCharsets.UTF_8);
+        int len = compressor.compress(data, 0, data.length);
+        // 截断的压缩数据
+        assertRejected(Arrays.copyOf(compressor.getBuffer(), len / 2), len / 2, data.length);
+    }
+
+    private byte[] decompress(byte[] block, int len, int maxSize) throws IOException {
+        byte[] out = new byte[maxSize];
+        int n = BlockCompressor.decompress(inflater, block, 0, len, out);
+        return Arrays.copyOf(out, n);
+    }
+
+    private void assertRejected(byte[] block, int len, int maxSize) {
+        try {
+            decompress(block, len, maxSize);
+            fail("应拒绝异常的压缩数据块");
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+    }
+}
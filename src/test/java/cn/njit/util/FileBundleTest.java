@@ -0,0 +1,104 @@
+package cn.njit.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FileBundleTest {
+    private static final int MAGIC = 0x46424E44;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndRead() throws IOException {
+        byte[] first = "欢迎来到侏罗纪世界！".getBytes(StandardCharsets.UTF_8);
+        byte[] second = new byte[20000];
+        Arrays.fill(second, (byte) 7);
+        File bundle = folder.newFile("test.bundle");
+        FileBundle.write(Arrays.asList(new FileBundle.Entry("a.txt", first),
+                new FileBundle.Entry("目录/b.bin", second), new FileBundle.Entry("empty", new byte[0])), bundle);
+
+        try (FileBundle.Reader reader = new FileBundle.Reader(new FileInputStream(bundle))) {
+            assertEquals(3, reader.getEntries().size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals("a.txt", reader.copyNext(out).getName());
+            assertArrayEquals(first, out.toByteArray());
+            out.reset();
+            FileBundle.Entry entry = reader.copyNext(out);
+            assertEquals("目录/b.bin", entry.getName());
+            assertEquals(second.length, entry.getSize());
+            assertArrayEquals(second, out.toByteArray());
+            out.reset();
+            assertEquals(0, reader.copyNext(out).getSize());
+            assertNull(reader.copyNext(out));
+        }
+    }
+
+    @Test
+    public void badMagicIsRejected() throws IOException {
+        assertRejected(index(0x12345678, 0));
+    }
+
+    @Test
+    public void entryCountLimits() throws IOException {
+        assertRejected(index(MAGIC, -1));
+        assertRejected(index(MAGIC, FileBundle.MAX_ENTRIES + 1));
+        // 文件数在上限之内但索引不完整
+        assertRejected(index(MAGIC, FileBundle.MAX_ENTRIES));
+    }
+
+    @Test
+    public void negativeSizeIsRejected() throws IOException {
+        assertRejected(index(MAGIC, 1, "a", -1));
+    }
+
+    @Test
+    public void truncatedContentIsRejected() throws IOException {
+        byte[] data = index(MAGIC, 1, "a", 100);
+        byte[] partial = Arrays.copyOf(data, data.length + 50);
+        try (FileBundle.Reader reader = new FileBundle.Reader(new ByteArrayInputStream(partial))) {
+            reader.copyNext(new ByteArrayOutputStream());
+            fail("内容不完整的文件包应被拒绝");
+        } catch (EOFException expected) {
+            // 预期的异常
+        }
+    }
+
+    // 按文件包格式生成索引：魔数、文件数，之后是若干对名称和大小
+    private static byte[] index(int magic, int count, Object... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeInt(count);
+        for (int i = 0; i < entries.length; i += 2) {
+            out.writeUTF((String) entries[i]);
+            out.writeLong(((Number) entries[i + 1]).longValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertRejected(byte[] data) {
+        try (FileBundle.Reader reader = new FileBundle.Reader(new ByteArrayInputStream(data))) {
+            fail("无效的文件包应被拒绝: " + reader.getEntries().size());
+        } catch (IOException expected) {
+            // 预期的异常
+        }
+    }
+}